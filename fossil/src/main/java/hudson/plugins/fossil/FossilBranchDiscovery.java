@@ -0,0 +1,226 @@
+package hudson.plugins.fossil;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.scm.SCM;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps one job per open Fossil branch for every job that has a {@link FossilBranchDiscoveryProperty}.
+ *
+ * Each pass asks every server once for its open branches and their tips (see
+ * {@link FossilJsonClient#getBranchTips()}), no matter how many branches or template jobs use it.  Branch
+ * jobs are created from the template when a branch appears and disabled when it is closed.  A branch job
+ * whose tip moved is asked to poll, and its polling answers from the tips fetched here instead of going
+ * back to the server, so N branches cost one remote query per pass rather than N pollers.
+ *
+ * The period can be changed with <tt>-Dhudson.plugins.fossil.FossilBranchDiscovery.minutes=N</tt>.
+ *
+ * @author Ron Perrella
+ */
+@Extension
+public class FossilBranchDiscovery extends AsyncPeriodicWork {
+
+    private static final long PERIOD = Long.getLong(FossilBranchDiscovery.class.getName() + ".minutes", 5) * MIN;
+
+    /**
+     * The tips fetched by the last pass, per server URL.
+     */
+    private static final Map<String, Tips> tipsByServer = new ConcurrentHashMap<String, Tips>();
+
+    /**
+     * The tip each branch job was last asked to poll for, per job.
+     */
+    private final Map<String, String> scheduledTips = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Constructor
+     */
+    public FossilBranchDiscovery() {
+        super("Fossil branch discovery");
+    }
+
+    /**
+     * @return how often discovery runs
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return PERIOD;
+    }
+
+    /**
+     * @param serverUrl a server URL as returned by {@link FossilScm#getServerUrl()}
+     * @param branch a branch name
+     * @return the branch's tip from the latest discovery pass, or null if there is no recent one.
+     */
+    static FossilCheckin getCachedTip(String serverUrl, String branch) {
+        Tips tips = tipsByServer.get(serverUrl);
+        if (tips == null || tips.fetched + PERIOD < System.currentTimeMillis()) {
+            return null;
+        }
+        return tips.tips.get(branch);
+    }
+
+    /**
+     * One discovery pass over all template jobs.
+     *
+     * @param listener the log of this periodic task
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Map<String, List<AbstractProject<?, ?>>> templatesByServer = new LinkedHashMap<String, List<AbstractProject<?, ?>>>();
+        for (AbstractProject<?, ?> p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            SCM scm = p.getScm();
+            if (p.getProperty(FossilBranchDiscoveryProperty.class) != null && scm instanceof FossilScm) {
+                String url = ((FossilScm) scm).getServerUrl();
+                if (!templatesByServer.containsKey(url)) {
+                    templatesByServer.put(url, new ArrayList<AbstractProject<?, ?>>());
+                }
+                templatesByServer.get(url).add(p);
+            }
+        }
+
+        for (Map.Entry<String, List<AbstractProject<?, ?>>> server : templatesByServer.entrySet()) {
+            FossilScm scm = (FossilScm) server.getValue().get(0).getScm();
+            Map<String, FossilCheckin> tips;
+            try {
+                tips = new FossilJsonClient(scm.getAuthenticatedServerUrl()).getBranchTips();
+            } catch (IOException e) {
+                listener.error("Unable to list branches on " + server.getKey() + ": " + e.getMessage());
+                continue;
+            }
+            tipsByServer.put(server.getKey(), new Tips(tips));
+            listener.getLogger().println(server.getKey() + ": " + tips.size() + " open branch(es)");
+
+            for (AbstractProject<?, ?> template : server.getValue()) {
+                try {
+                    updateBranchJobs(template, tips, listener);
+                } catch (IOException e) {
+                    listener.error("Unable to update branch jobs of " + template.getFullName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Create, re-enable or disable the branch jobs of one template, and ask the ones whose tip moved to poll.
+     */
+    private void updateBranchJobs(AbstractProject<?, ?> template, Map<String, FossilCheckin> tips, TaskListener listener)
+            throws IOException {
+        FossilBranchDiscoveryProperty discovery = template.getProperty(FossilBranchDiscoveryProperty.class);
+        FossilScm scm = (FossilScm) template.getScm();
+
+        for (Map.Entry<String, FossilCheckin> tip : tips.entrySet()) {
+            String branch = tip.getKey();
+            if (!discovery.accepts(branch)) {
+                continue;
+            }
+            AbstractProject<?, ?> job = getBranchJob(template, branch);
+            if (job == null) {
+                job = createBranchJob(template, scm, branch);
+                if (job == null) {
+                    continue;
+                }
+                listener.getLogger().println("Created " + job.getFullName() + " for branch " + branch);
+            } else if (job.isDisabled()) {
+                job.enable();
+                listener.getLogger().println("Re-enabled " + job.getFullName() + ": branch " + branch + " is open again");
+            }
+            String uuid = tip.getValue().getUuid();
+            if (!uuid.equals(scheduledTips.put(job.getFullName(), uuid))) {
+                job.schedulePolling();
+            }
+        }
+
+        for (AbstractProject<?, ?> p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            SCM s = p.getScm();
+            if (s instanceof FossilScm && ((FossilScm) s).isBranchBuild() && p != template) {
+                String branch = ((FossilScm) s).getBranch();
+                if (branchJobNames(template.getName(), branch).contains(p.getName()) && !tips.containsKey(branch) && !p.isDisabled()) {
+                    p.disable();
+                    scheduledTips.remove(p.getFullName());
+                    listener.getLogger().println("Disabled " + p.getFullName() + ": branch " + branch + " is closed");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the template's job for the branch: a Fossil job under one of the names of
+     *         {@link #branchJobNames(String, String)} that builds that very branch, or null.
+     */
+    private AbstractProject<?, ?> getBranchJob(AbstractProject<?, ?> template, String branch) {
+        for (String name : branchJobNames(template.getName(), branch)) {
+            TopLevelItem item = Hudson.getInstance().getItem(name);
+            if (item instanceof AbstractProject && ((AbstractProject<?, ?>) item).getScm() instanceof FossilScm
+                    && branch.equals(((FossilScm) ((AbstractProject<?, ?>) item).getScm()).getBranch())) {
+                return (AbstractProject<?, ?>) item;
+            }
+        }
+        return null;
+    }
+
+    private AbstractProject<?, ?> createBranchJob(AbstractProject<?, ?> template, FossilScm scm, String branch)
+            throws IOException {
+        String name = null;
+        for (String candidate : branchJobNames(template.getName(), branch)) {
+            if (Hudson.getInstance().getItem(candidate) == null) {
+                name = candidate;
+                break;
+            }
+        }
+        if (!(template instanceof TopLevelItem) || name == null) {
+            logger.log(Level.WARNING, "Cannot create a job for branch {0} of {1}", new Object[]{branch, template.getFullName()});
+            return null;
+        }
+        AbstractProject<?, ?> job = (AbstractProject<?, ?>) Hudson.getInstance().copy((TopLevelItem) template, name);
+        job.removeProperty(FossilBranchDiscoveryProperty.class);
+        job.setScm(scm.forBranch(branch));
+        job.save();
+        return job;
+    }
+
+    /**
+     * The names a branch job may have, in order of preference.  Characters not allowed in job names are
+     * replaced, so different branches (<tt>a/b</tt> and <tt>a_b</tt>) can share the first name; the
+     * second one, with a hash of the branch name appended, is used when the first is taken by another job.
+     *
+     * @param template the name of the template job
+     * @param branch a branch name
+     * @return the names of the template's job for the branch
+     */
+    static List<String> branchJobNames(String template, String branch) {
+        String name = template + "-" + branch.replaceAll("[^A-Za-z0-9._-]", "_");
+        return Arrays.asList(name, name + "-" + String.format("%08x", branch.hashCode()));
+    }
+
+    /**
+     * The branch tips of one server at one point in time.
+     */
+    private static final class Tips {
+
+        private final long fetched = System.currentTimeMillis();
+        private final Map<String, FossilCheckin> tips;
+
+        Tips(Map<String, FossilCheckin> tips) {
+            this.tips = Collections.unmodifiableMap(tips);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilBranchDiscovery.class.getName());
+}
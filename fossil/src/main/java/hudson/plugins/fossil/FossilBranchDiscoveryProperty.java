@@ -0,0 +1,116 @@
+package hudson.plugins.fossil;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+import hudson.util.FormValidation;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Marks a Fossil job as the template for per-branch jobs.
+ *
+ * {@link FossilBranchDiscovery} lists the open branches on the template's server and keeps one copy of
+ * the template for each branch whose name matches the pattern.  The copies are named
+ * <tt>&lt;template&gt;-&lt;branch&gt;</tt> and build only their branch.  If the template's repository is
+ * an absolute path, every branch job on a node shares that one repository file instead of cloning its own.
+ *
+ * @author Ron Perrella
+ */
+public class FossilBranchDiscoveryProperty extends JobProperty<AbstractProject<?, ?>> {
+
+    private final String branchPattern;
+
+    /**
+     * @param branchPattern a regular expression for the branch names to build (empty for all open branches)
+     */
+    @DataBoundConstructor
+    public FossilBranchDiscoveryProperty(String branchPattern) {
+        this.branchPattern = Util.fixNull(branchPattern).trim();
+    }
+
+    /**
+     * @return a regular expression for the branch names to build (empty for all open branches)
+     */
+    public String getBranchPattern() {
+        return branchPattern;
+    }
+
+    /**
+     * @param branch an open branch on the server
+     * @return true if a job should be kept for the branch.
+     */
+    public boolean accepts(String branch) {
+        if (branchPattern.length() == 0) {
+            return true;
+        }
+        try {
+            return Pattern.matches(branchPattern, branch);
+        } catch (PatternSyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Descriptor for the job property.
+     */
+    @Extension
+    public static final class DescriptorImpl extends JobPropertyDescriptor {
+
+        /**
+         * @return the display name for this property.
+         */
+        @Override
+        public String getDisplayName() {
+            return "Create a job for each Fossil branch";
+        }
+
+        /**
+         * @param jobType the kind of job being configured
+         * @return true for jobs that can use an SCM.
+         */
+        @Override
+        public boolean isApplicable(Class<? extends Job> jobType) {
+            return AbstractProject.class.isAssignableFrom(jobType);
+        }
+
+        /**
+         * The property only exists when its box is ticked on the configuration page.
+         *
+         * @param req
+         * @param formData
+         * @return the property, or null if branch discovery is off
+         * @throws hudson.model.Descriptor.FormException
+         */
+        @Override
+        public JobProperty<?> newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+            JSONObject discovery = formData.optJSONObject("fossilBranchDiscovery");
+            if (discovery == null || discovery.isNullObject()) {
+                return null;
+            }
+            return req.bindJSON(FossilBranchDiscoveryProperty.class, discovery);
+        }
+
+        /**
+         * validate a branch pattern
+         *
+         * @param value a regular expression
+         * @return form validation
+         */
+        public FormValidation doCheckBranchPattern(@QueryParameter String value) {
+            try {
+                Pattern.compile(Util.fixNull(value));
+                return FormValidation.ok();
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error("Not a valid regular expression: " + e.getDescription());
+            }
+        }
+    }
+}
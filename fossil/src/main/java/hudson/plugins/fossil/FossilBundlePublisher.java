@@ -0,0 +1,256 @@
+package hudson.plugins.fossil;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Launcher.LocalLauncher;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.scm.SCM;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import hudson.util.ArgumentListBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Hands the checkins of a build to its downstream jobs as a Fossil bundle, so that they need not pull
+ * from the server.
+ *
+ * After the build, the checkins that the downstream jobs have not built yet (those after the oldest
+ * revision last built by a downstream Fossil job, up to the revision this build checked out) are exported
+ * with <tt>fossil bundle export</tt> into the build's artifacts as {@link #BUNDLE}.  A downstream job whose
+ * configuration names this job (see {@link FossilScm#getBundleFrom()}) imports the bundle into its
+ * repository and updates to the upstream revision without contacting the server; see
+ * {@link #findUpstreamBuild(AbstractBuild, String)}.
+ *
+ * The bundle is an optimization only: if it cannot be made or imported, downstream jobs pull as usual.
+ *
+ * @author Ron Perrella
+ */
+public class FossilBundlePublisher extends Recorder {
+
+    /**
+     * Name of the bundle, in the artifacts of the upstream build and in the downstream workspace.
+     */
+    static final String BUNDLE = "fossil-handoff.bundle";
+
+    /**
+     * Nothing to configure.
+     */
+    @DataBoundConstructor
+    public FossilBundlePublisher() {
+    }
+
+    /**
+     * @return NONE, bundles of different builds do not depend on each other.
+     */
+    public BuildStepMonitor getRequiredMonitorService() {
+        return BuildStepMonitor.NONE;
+    }
+
+    /**
+     * Export the bundle.  Never fails the build.
+     *
+     * @param build
+     * @param launcher
+     * @param listener
+     * @return true
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+            throws InterruptedException, IOException {
+        SCM scm = build.getProject().getScm();
+        FossilRevisionState built = build.getAction(FossilRevisionState.class);
+        FilePath workspace = build.getWorkspace();
+        if (!(scm instanceof FossilScm) || built == null || workspace == null) {
+            listener.getLogger().println("info: no Fossil checkout in this build; not exporting a bundle.");
+            return true;
+        }
+        FossilRevisionState since = oldestDownstreamRevision(build.getProject(), built.getRevId());
+        if (since == null) {
+            listener.getLogger().println("info: no downstream Fossil job has built a revision yet; not exporting a bundle.");
+            return true;
+        }
+
+        FossilScm fossil = (FossilScm) scm;
+        FilePath bundle = workspace.child(BUNDLE);
+        String error = workspace.act(new Export(fossil.getDescriptor().getFossilExecutable(), fossil.getLocalRepository(),
+                since.getRevId(), built.getRevId()));
+        if (error != null) {
+            listener.error("Failed to export a bundle of the checkins after " + since.getRevId() + ": " + error);
+            return true;
+        }
+        File artifacts = build.getArtifactsDir();
+        if (!artifacts.isDirectory() && !artifacts.mkdirs()) {
+            listener.error("Cannot create " + artifacts);
+            return true;
+        }
+        bundle.copyTo(new FilePath(new File(artifacts, BUNDLE)));
+        bundle.delete();
+        listener.getLogger().println("info: exported the checkins from " + since.getRevId() + " to " + built.getRevId()
+                + " for downstream jobs (" + new File(artifacts, BUNDLE).length() + " bytes)");
+        return true;
+    }
+
+    /**
+     * @param project the upstream job
+     * @param revId the revision it just built
+     * @return the revision that the downstream Fossil job furthest behind last built, or null if there is none
+     *         (or all of them already have revId)
+     */
+    private static FossilRevisionState oldestDownstreamRevision(AbstractProject<?, ?> project, String revId) {
+        FossilRevisionState oldest = null;
+        for (AbstractProject<?, ?> downstream : project.getDownstreamProjects()) {
+            if (!(downstream.getScm() instanceof FossilScm) || downstream.getLastBuild() == null) {
+                continue;
+            }
+            FossilRevisionState last = downstream.getLastBuild().getAction(FossilRevisionState.class);
+            if (last == null || last.getRevId().equals(revId)) {
+                continue;
+            }
+            if (oldest == null || last.getTimestamp() < oldest.getTimestamp()) {
+                oldest = last;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Find the upstream build whose bundle a downstream build should import: the build of the upstream job
+     * that triggered it.  A build started otherwise (by polling, a timer or a user) has none, and pulls
+     * from the server: pinning it to an older upstream checkin would ignore the job's branch and make every
+     * poll see a new tip again.
+     *
+     * @param build the downstream build
+     * @param upstreamJob the full name of the upstream job
+     * @return the upstream build, or null if it did not trigger this build, or has no bundle or no revision
+     */
+    static AbstractBuild<?, ?> findUpstreamBuild(AbstractBuild<?, ?> build, String upstreamJob) {
+        int number = upstreamBuildNumber(build.getCauses(), upstreamJob);
+        if (number < 0) {
+            return null;
+        }
+        AbstractProject<?, ?> upstream = Hudson.getInstance().getItemByFullName(upstreamJob, AbstractProject.class);
+        AbstractBuild<?, ?> candidate = upstream == null ? null : upstream.getBuildByNumber(number);
+        if (candidate == null || candidate.getAction(FossilRevisionState.class) == null
+                || !new File(candidate.getArtifactsDir(), BUNDLE).isFile()) {
+            return null;
+        }
+        return candidate;
+    }
+
+    /**
+     * @param causes the causes of a downstream build
+     * @param upstreamJob the full name of the upstream job
+     * @return the number of the upstream build that triggered the build, or -1 if none did
+     */
+    static int upstreamBuildNumber(List<Cause> causes, String upstreamJob) {
+        for (Cause cause : causes) {
+            if (cause instanceof Cause.UpstreamCause && upstreamJob.equals(((Cause.UpstreamCause) cause).getUpstreamProject())) {
+                return ((Cause.UpstreamCause) cause).getUpstreamBuild();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Runs on the node: <tt>fossil bundle export</tt> into the workspace.
+     */
+    private static final class Export implements FileCallable<String> {
+
+        private final String fossilExecutable;
+        private final String localRepository;
+        private final String from;
+        private final String to;
+
+        Export(String fossilExecutable, String localRepository, String from, String to) {
+            this.fossilExecutable = fossilExecutable;
+            this.localRepository = localRepository;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return null if the bundle was written, else the reason it was not.
+         */
+        public String invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            File repo = FossilCheckoutTask.repository(workspace, localRepository);
+            File bundle = new File(workspace, BUNDLE);
+            if (bundle.exists() && !bundle.delete()) {
+                return "cannot delete " + bundle;
+            }
+            Launcher launcher = new LocalLauncher(TaskListener.NULL);
+            ByteArrayOutputStream version = new ByteArrayOutputStream();
+            Proc probe = launcher.launch().cmds(fossilExecutable, "version").stdout(version).pwd(workspace).start();
+            FossilProcess.join(probe, "version", TaskListener.NULL);
+            FossilClientInfo client = FossilClientInfo.parse(version.toString());
+            if (!client.canBundle()) {
+                return client + " has no bundle command";
+            }
+            synchronized (FossilCheckoutTask.lockFor(repo)) {
+                if (!repo.exists()) {
+                    return "no repository at " + repo;
+                }
+                ArgumentListBuilder args = new ArgumentListBuilder();
+                args.add(fossilExecutable, "bundle", "export", bundle.getPath());
+                args.add("--from", from);
+                args.add("--to", to);
+                args.add("-R", repo.getPath());
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Proc proc = launcher.launch().cmds(args).stdout(out).pwd(workspace).start();
+                if (FossilProcess.join(proc, "bundle", TaskListener.NULL) != 0) {
+                    bundle.delete();
+                    logger.log(Level.FINE, "{0} failed: {1}", new Object[]{args.toStringWithQuote(), out.toString()});
+                    return out.toString().trim();
+                }
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Descriptor for the publisher.
+     */
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+
+        /**
+         * @param jobType the kind of job being configured
+         * @return true, any job with a Fossil checkout can hand it on.
+         */
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        /**
+         * @return the display name for this publisher.
+         */
+        @Override
+        public String getDisplayName() {
+            return "Hand Fossil checkins to downstream jobs as a bundle";
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilBundlePublisher.class.getName());
+}
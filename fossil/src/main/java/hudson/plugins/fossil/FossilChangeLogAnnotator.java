@@ -1,7 +1,3 @@
-/*
- * To change this template, choose Tools | Templates
- * and open the template in the editor.
- */
 package hudson.plugins.fossil;
 
 import hudson.Extension;
@@ -9,38 +5,148 @@ import hudson.MarkupText;
 import hudson.model.AbstractBuild;
 import hudson.scm.ChangeLogAnnotator;
 import hudson.scm.ChangeLogSet.Entry;
-import hudson.scm.SCM;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
+ * Links artifact IDs and ticket references in checkin comments to the Fossil server.
+ *
+ * Each comment is scanned once.  A run of 8 to 64 hex digits that stands on its own, and has both a digit
+ * and a letter a-f in it, is linked to <tt>/info/&lt;id&gt;</tt> (Fossil's page for any artifact: checkin,
+ * ticket, file...); a plain number such as a date or a build number is not.  In Fossil's bracketed form,
+ * <tt>[&lt;id&gt;]</tt>, any such run is linked.  When the ID follows the word "ticket", "tkt" or "bug" it
+ * is linked to <tt>/tktview/&lt;id&gt;</tt>.  A comment without references is linked as a whole to its own
+ * checkin, as before.
  *
  * @author perrella
  */
 @Extension
 public class FossilChangeLogAnnotator extends ChangeLogAnnotator {
+
+    private static final int MIN_ID = 8;
+    private static final int MAX_ID = 64;
+
     /**
      * Annotate the changelog text to point to changelog overview.
-     * 
+     *
      * @param build
      * @param change
-     * @param text 
+     * @param text
      */
     public void annotate(AbstractBuild<?,?> build, Entry change, MarkupText text ){
-       SCM scm  = build.getProject().getScm(); 
-       
-       if (scm instanceof FossilScm) {
-           FossilScm fscm = (FossilScm) scm;
-           
-           String url = fscm.getServerUrl();
-           
-           if (!url.endsWith("/")){
-               url = url + "/";
-           }
-           url = url + "info/" + change.getCommitId();
-           text.addHyperlink(0, text.length(), url);
+       if (!(change instanceof FossilChangeLogEntry) || !(change.getParent() instanceof FossilChangeLogSet)) {
+           return;
+       }
+       String url = ((FossilChangeLogSet) change.getParent()).getBrowseUrl();
+       if (url == null) {
+           return;
+       }
+
+       List<Reference> refs = scan(text.getText());
+       if (refs.isEmpty()) {
+           text.addHyperlink(0, text.length(), url + "info/" + change.getCommitId());
+       }
+       for (Reference ref : refs) {
+           text.addHyperlink(ref.start, ref.end, url + ref.path);
        }
-       
     }
-    
-    
+
+    /**
+     * Find the artifact IDs and ticket references in a comment, in a single pass.
+     *
+     * @param text a checkin comment
+     * @return the references, in order of appearance
+     */
+    static List<Reference> scan(String text) {
+        List<Reference> refs = new ArrayList<Reference>();
+        int n = text.length();
+        int lastWordStart = -1; // previous word, to recognize "ticket <id>"
+        int lastWordEnd = -1;
+
+        int i = 0;
+        while (i < n) {
+            char ch = text.charAt(i);
+            if (!isWordChar(ch)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            boolean hex = true;
+            while (i < n && isWordChar(text.charAt(i))) {
+                hex &= isHex(text.charAt(i));
+                i++;
+            }
+            int len = i - start;
+            boolean bracketed = start > 0 && text.charAt(start - 1) == '[' && i < n && text.charAt(i) == ']';
+            if (hex && len >= MIN_ID && len <= MAX_ID && (bracketed || isMixed(text, start, i))) {
+                String id = text.substring(start, i).toLowerCase();
+                boolean ticket = lastWordStart >= 0 && isTicketWord(text, lastWordStart, lastWordEnd, start);
+                refs.add(new Reference(start, i, (ticket ? "tktview/" : "info/") + id));
+            }
+            lastWordStart = start;
+            lastWordEnd = i;
+        }
+        return refs;
+    }
+
+    private static boolean isWordChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_';
+    }
+
+    private static boolean isHex(char ch) {
+        return (ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F');
+    }
+
+    /**
+     * Words like "deadbeefcafe" are hex too, and so are numbers like "20120602"; an ID almost always has
+     * both digits and letters in it.
+     */
+    private static boolean isMixed(String text, int start, int end) {
+        boolean digit = false;
+        boolean letter = false;
+        for (int i = start; i < end; i++) {
+            if (Character.isDigit(text.charAt(i))) {
+                digit = true;
+            } else {
+                letter = true;
+            }
+        }
+        return digit && letter;
+    }
+
+    /**
+     * @return true if the previous word is "ticket", "tkt" or "bug" and only blanks, '#' or ':' separate it from the ID.
+     */
+    private static boolean isTicketWord(String text, int start, int end, int idStart) {
+        for (int i = end; i < idStart; i++) {
+            char ch = text.charAt(i);
+            if (ch != ' ' && ch != '#' && ch != ':' && ch != '\t') {
+                return false;
+            }
+        }
+        String word = text.substring(start, end);
+        return word.equalsIgnoreCase("ticket") || word.equalsIgnoreCase("tkt") || word.equalsIgnoreCase("bug");
+    }
+
+    /**
+     * A link to add to a comment.
+     */
+    static final class Reference {
+
+        final int start;
+        final int end;
+        final String path;
+
+        Reference(int start, int end, String path) {
+            this.start = start;
+            this.end = end;
+            this.path = path;
+        }
+
+        @Override
+        public String toString() {
+            return start + "-" + end + ":" + path;
+        }
+    }
 }
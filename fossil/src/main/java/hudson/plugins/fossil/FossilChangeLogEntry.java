@@ -95,6 +95,13 @@ public class FossilChangeLogEntry extends ChangeLogSet.Entry {
         return user;
     }
 
+    /**
+     * @return the Fossil user name of the author, without looking up (or creating) a Jenkins user
+     */
+    String getAuthorName() {
+        return author;
+    }
+
     /**
      * @return the checkin (aka commit) of the change log
      */
@@ -174,6 +181,13 @@ public class FossilChangeLogEntry extends ChangeLogSet.Entry {
         return affectedFiles;
     }
 
+    /**
+     * @return the affected files, in order
+     */
+    List<FossilAffectedFile> getAffectedFileList() {
+        return affectedFiles;
+    }
+
     /**
      * Associate a parent change log set for this change log.
      * 
@@ -0,0 +1,239 @@
+package hudson.plugins.fossil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The machine-readable change log format.
+ *
+ * The first line is {@link #HEADER}.  Every following line is one checkin, with the fields separated by
+ * the ASCII unit separator (0x1F) and list items separated by the ASCII record separator (0x1E):
+ * <pre>
+ * uuid US epoch-seconds US user US tag RS tag... US parent RS parent... US op path RS op path... US comment
+ * </pre>
+ * where op is A (added), E (edited) or D (deleted) immediately followed by the full path, and newlines and
+ * backslashes in the comment are escaped as <tt>\n</tt> and <tt>\\</tt>.  Hashes are full length, so
+ * nothing has to be looked up again, and reading a record is a split on fixed separators.
+ *
+ * {@link #QUERY} produces the records straight from the repository with <tt>fossil sql</tt>; the
+ * timeline text format is still read for change logs written by older versions.
+ *
+ * @author Ron Perrella
+ */
+final class FossilChangeLogFormat {
+
+    /**
+     * First line of a change log in this format.
+     */
+    static final String HEADER = "#fossil-changelog 1";
+
+    static final char US = '\u001F';
+    static final char RS = '\u001E';
+
+    /**
+     * Selects one record per checkin of event e / blob b; a WHERE clause must follow.
+     */
+    private static final String SELECT = ""
+            + "SELECT b.uuid"
+            + " || char(31) || CAST(round((e.mtime - 2440587.5) * 86400) AS INTEGER)"
+            + " || char(31) || coalesce(e.euser, e.user, '')"
+            + " || char(31) || coalesce((SELECT group_concat(substr(t.tagname, 5), char(30))"
+            + "      FROM tagxref x JOIN tag t ON t.tagid = x.tagid"
+            + "      WHERE x.rid = e.objid AND x.tagtype > 0 AND t.tagname GLOB 'sym-*'), '')"
+            + " || char(31) || coalesce((SELECT group_concat(u, char(30)) FROM (SELECT p.uuid AS u"
+            + "      FROM plink l JOIN blob p ON p.rid = l.pid WHERE l.cid = e.objid ORDER BY l.isprim DESC)), '')"
+            + " || char(31) || coalesce((SELECT group_concat(f, char(30)) FROM (SELECT DISTINCT"
+            + "      (CASE WHEN m.pid = 0 THEN 'A' WHEN m.fid = 0 THEN 'D' ELSE 'E' END) || n.name AS f"
+            + "      FROM mlink m JOIN filename n ON n.fnid = m.fnid WHERE m.mid = e.objid ORDER BY n.name)), '')"
+            + " || char(31) || replace(replace(replace(coalesce(e.ecomment, e.comment, ''),"
+            + "      '\\', '\\\\'), char(13), ''), char(10), '\\n')"
+            + " FROM event e JOIN blob b ON b.rid = e.objid";
+
+    /**
+     * Selects the checkins after ?OLD? up to and including ?NEW? (the placeholders are replaced with
+     * full hashes), newest first, one record per row.  Same range as <tt>fossil timeline before NEW</tt>
+     * cut off at OLD.
+     */
+    static final String QUERY = SELECT
+            + " WHERE e.type = 'ci'"
+            + " AND e.mtime <= (SELECT mtime FROM event WHERE objid = (SELECT rid FROM blob WHERE uuid = '?NEW?'))"
+            + " AND e.mtime > (SELECT mtime FROM event WHERE objid = (SELECT rid FROM blob WHERE uuid = '?OLD?'))"
+            + " ORDER BY e.mtime DESC;\n";
+
+    private FossilChangeLogFormat() {
+    }
+
+    /**
+     * @param oldRevId the baseline checkin (full hash)
+     * @param newRevId the current checkin (full hash)
+     * @return the SQL for <tt>fossil sql</tt> that lists the checkins between them.
+     */
+    static String query(String oldRevId, String newRevId) {
+        return QUERY.replace("?OLD?", hex(oldRevId)).replace("?NEW?", hex(newRevId));
+    }
+
+    /**
+     * @param revIds full checkin hashes, e.g. from {@link FossilCheckinGraph#between(String, String)}
+     * @return the SQL for <tt>fossil sql</tt> that lists exactly those checkins, newest first.
+     */
+    static String query(List<String> revIds) {
+        StringBuilder sb = new StringBuilder(SELECT).append(" WHERE e.type = 'ci' AND b.uuid IN (");
+        for (int i = 0; i < revIds.size(); i++) {
+            sb.append(i > 0 ? ", '" : "'").append(hex(revIds.get(i))).append('\'');
+        }
+        return sb.append(") ORDER BY e.mtime DESC;\n").toString();
+    }
+
+    private static String hex(String revId) {
+        if (!revId.matches("[0-9a-fA-F]+")) {
+            throw new IllegalArgumentException("not a checkin hash: " + revId);
+        }
+        return revId.toLowerCase();
+    }
+
+    /**
+     * Write checkins in this format, header included.
+     *
+     * @param out where the change log goes
+     * @param checkins the checkins, newest first
+     * @throws IOException
+     */
+    static void write(Writer out, List<FossilCheckin> checkins) throws IOException {
+        out.write(HEADER);
+        out.write('\n');
+        StringBuilder sb = new StringBuilder();
+        for (FossilCheckin ci : checkins) {
+            sb.setLength(0);
+            sb.append(clean(ci.getUuid())).append(US);
+            sb.append(ci.getTimestamp()).append(US);
+            sb.append(clean(ci.getUser())).append(US);
+            join(sb, ci.getTags());
+            sb.append(US);
+            join(sb, ci.getParents());
+            sb.append(US);
+            for (int i = 0; i < ci.getFiles().size(); i++) {
+                FossilCheckin.FileChange f = ci.getFiles().get(i);
+                sb.append(i > 0 ? String.valueOf(RS) : "").append(f.getOp()).append(clean(f.getPath()));
+            }
+            sb.append(US);
+            String comment = clean(ci.getComment());
+            for (int i = 0; i < comment.length(); i++) {
+                char ch = comment.charAt(i);
+                if (ch == '\\') {
+                    sb.append("\\\\");
+                } else if (ch == '\n') {
+                    sb.append("\\n");
+                } else if (ch != '\r') {
+                    sb.append(ch);
+                }
+            }
+            sb.append('\n');
+            out.write(sb.toString());
+        }
+    }
+
+    /**
+     * Read checkins in this format.  The header must already have been consumed.
+     *
+     * @param in the rest of the change log
+     * @return the checkins, in file order
+     * @throws IOException
+     */
+    static List<FossilCheckin> read(BufferedReader in) throws IOException {
+        List<FossilCheckin> result = new ArrayList<FossilCheckin>();
+        String s;
+        while ((s = in.readLine()) != null) {
+            FossilCheckin ci = parse(s);
+            if (ci != null) {
+                result.add(ci);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read one line of a change log in this format.
+     *
+     * @param s a line after the header
+     * @return the checkin, or null if the line is not a record (e.g. an error message from fossil sql)
+     */
+    static FossilCheckin parse(String s) {
+        if (s.length() == 0 || s.charAt(0) == '#') {
+            return null;
+        }
+        String[] field = split(s, US);
+        if (field.length < 7) {
+            return null;
+        }
+        long timestamp;
+        try {
+            timestamp = Long.parseLong(field[1]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        List<FossilCheckin.FileChange> files = new ArrayList<FossilCheckin.FileChange>();
+        for (String f : list(field[5])) {
+            if (f.length() > 1) {
+                files.add(new FossilCheckin.FileChange(f.charAt(0), f.substring(1)));
+            }
+        }
+        return new FossilCheckin(field[0], timestamp, field[2], unescape(field[6]),
+                list(field[3]), list(field[4]), files);
+    }
+
+    private static String[] split(String s, char sep) {
+        List<String> parts = new ArrayList<String>();
+        int from = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == sep) {
+                parts.add(s.substring(from, i));
+                from = i + 1;
+            }
+        }
+        parts.add(s.substring(from));
+        return parts.toArray(new String[parts.size()]);
+    }
+
+    private static List<String> list(String field) {
+        List<String> items = new ArrayList<String>();
+        if (field.length() > 0) {
+            for (String item : split(field, RS)) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private static void join(StringBuilder sb, List<String> items) {
+        for (int i = 0; i < items.size(); i++) {
+            sb.append(i > 0 ? String.valueOf(RS) : "").append(clean(items.get(i)));
+        }
+    }
+
+    /**
+     * Separators cannot be escaped, so they are dropped from values (they never occur in practice).
+     */
+    private static String clean(String s) {
+        return s.indexOf(US) < 0 && s.indexOf(RS) < 0 ? s : s.replace(String.valueOf(US), "").replace(String.valueOf(RS), "");
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next);
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -6,8 +6,9 @@ import hudson.scm.ChangeLogSet;
 import hudson.scm.EditType;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -17,7 +18,8 @@ import org.xml.sax.SAXException;
 /**
  * This is a parser for Fossil change logs.
  * 
- * A Fossil Change Log looks like this:
+ * Change logs are written in the {@link FossilChangeLogFormat}.  Older builds have the
+ * Fossil timeline text instead, which looks like this:
 
  * @author perrella
  */
@@ -57,7 +59,7 @@ class FossilChangeLogParser extends ChangeLogParser {
             throws IOException,
             SAXException {
 
-        BufferedReader inf = new BufferedReader(new FileReader(changelogFile));
+        BufferedReader inf = new BufferedReader(new InputStreamReader(new FileInputStream(changelogFile), "UTF-8"));
         
         List<FossilChangeLogEntry> chg = buffered_parse(inf);
         inf.close();
@@ -68,7 +70,7 @@ class FossilChangeLogParser extends ChangeLogParser {
     /**
      * parse a single change log from a buffered reader.
      * 
-     * parses a Fossil Timeline log.
+     * parses a change log in the {@link FossilChangeLogFormat}, or a Fossil Timeline log.
      * 
      * This was separated out in order to facilitate unit testing.
      * 
@@ -82,6 +84,17 @@ class FossilChangeLogParser extends ChangeLogParser {
             SAXException {
 
         List<FossilChangeLogEntry> entries = new LinkedList<FossilChangeLogEntry>();
+
+        in.mark(FossilChangeLogFormat.HEADER.length() + 2);
+        String first = in.readLine();
+        if (first != null && first.startsWith(FossilChangeLogFormat.HEADER)) {
+            for (FossilCheckin ci : FossilChangeLogFormat.read(in)) {
+                entries.add(ci.toChangeLogEntry());
+            }
+            return entries;
+        }
+        in.reset();
+
         String s = "";
         String dt = "";
         String ti = "";
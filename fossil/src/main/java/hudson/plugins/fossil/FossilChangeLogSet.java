@@ -2,21 +2,45 @@ package hudson.plugins.fossil;
 
 import hudson.model.AbstractBuild;
 import hudson.scm.ChangeLogSet;
+import hudson.scm.EditType;
+import hudson.scm.SCM;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * List of "change logs" that went into a build.
  * 
- * 
+ * The changes page shows {@link #PAGE_SIZE} checkins at a time and at most {@link #FILES_SHOWN} files
+ * per checkin, collapsed; the digest on the build page shows the first {@link #DIGEST_SIZE} checkins.
+ * The counts at the top of the changes page are computed once per change log (see {@link #getSummary()}).
  * 
  * @author Trond Norbye (original)
  * @author Ron Perrella
  */
 
 public class FossilChangeLogSet extends ChangeLogSet<FossilChangeLogEntry> {
+     /**
+      * Checkins per page of the changes page.
+      */
+     static final int PAGE_SIZE = Integer.getInteger(FossilChangeLogSet.class.getName() + ".pageSize", 100);
+
+     /**
+      * Checkins listed on the build page.
+      */
+     static final int DIGEST_SIZE = 20;
+
+     /**
+      * Files listed per checkin; the Fossil server's checkin page has them all.
+      */
+     static final int FILES_SHOWN = 50;
+
      private final List<FossilChangeLogEntry> changeSets;
+     private transient String browseUrl;  // looked up once per build, see getBrowseUrl()
+     private transient Summary summary;   // computed once, see getSummary()
     
      /**
       * FossilChangeLogSet ctor
@@ -51,6 +75,156 @@ public class FossilChangeLogSet extends ChangeLogSet<FossilChangeLogEntry> {
         return changeSets;
     }
 
+    /**
+     * @return the checkins listed on the build page
+     */
+    public List<FossilChangeLogEntry> getDigest() {
+        return changeSets.subList(0, Math.min(DIGEST_SIZE, changeSets.size()));
+    }
+
+    /**
+     * @return the number of pages of the changes page (at least 1)
+     */
+    public int getPageCount() {
+        return Math.max(1, (changeSets.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * @param param the <tt>page</tt> request parameter (may be null or garbage)
+     * @return the page number it asks for, between 1 and {@link #getPageCount()}
+     */
+    public int pageNumber(String param) {
+        int page = 1;
+        try {
+            if (param != null) {
+                page = Integer.parseInt(param.trim());
+            }
+        } catch (NumberFormatException e) {
+            page = 1;
+        }
+        return Math.min(getPageCount(), Math.max(1, page));
+    }
+
+    /**
+     * @param page a page number, see {@link #pageNumber(String)}
+     * @return the index of the first checkin of the page
+     */
+    public int pageOffset(int page) {
+        return (page - 1) * PAGE_SIZE;
+    }
+
+    /**
+     * @param page a page number, see {@link #pageNumber(String)}
+     * @return the checkins on the page
+     */
+    public List<FossilChangeLogEntry> page(int page) {
+        int from = Math.min(changeSets.size(), pageOffset(page));
+        return changeSets.subList(from, Math.min(changeSets.size(), from + PAGE_SIZE));
+    }
+
+    /**
+     * @param index the index of a checkin in the change log
+     * @return the link to its details on the changes page, relative to the build
+     */
+    public String detailLink(int index) {
+        return "changes?page=" + (index / PAGE_SIZE + 1) + "#detail" + index;
+    }
+
+    /**
+     * @param entry a checkin
+     * @return the files to list for it, at most {@link #FILES_SHOWN}
+     */
+    public List<FossilAffectedFile> filesShown(FossilChangeLogEntry entry) {
+        List<FossilAffectedFile> files = entry.getAffectedFileList();
+        return files.subList(0, Math.min(FILES_SHOWN, files.size()));
+    }
+
+    /**
+     * @return the counts shown at the top of the changes page
+     */
+    public Summary getSummary() {
+        if (summary == null) {
+            summary = new Summary(changeSets);
+        }
+        return summary;
+    }
+
+    /**
+     * What a change log adds up to.
+     */
+    public static final class Summary {
+
+        private final int checkins;
+        private final int authors;
+        private final int merges;
+        private int added, edited, deleted;
+
+        Summary(Collection<FossilChangeLogEntry> entries) {
+            Set<String> names = new HashSet<String>();
+            int m = 0;
+            for (FossilChangeLogEntry e : entries) {
+                names.add(e.getAuthorName());
+                if (e.isMerge()) {
+                    m++;
+                }
+                for (FossilAffectedFile f : e.getAffectedFiles()) {
+                    if (f.getEditType() == EditType.ADD) {
+                        added++;
+                    } else if (f.getEditType() == EditType.DELETE) {
+                        deleted++;
+                    } else {
+                        edited++;
+                    }
+                }
+            }
+            this.checkins = entries.size();
+            this.authors = names.size();
+            this.merges = m;
+        }
+
+        public int getCheckins() {
+            return checkins;
+        }
+
+        public int getAuthors() {
+            return authors;
+        }
+
+        public int getMerges() {
+            return merges;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getEdited() {
+            return edited;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+    }
+
+    /**
+     * The server URL, ending in a slash, under which checkins and tickets of this build can be viewed.
+     * It is looked up once, so annotating every entry of a long change log does not ask the job
+     * for its SCM each time.
+     *
+     * @return the URL prefix, or null if the build no longer uses Fossil.
+     */
+    String getBrowseUrl() {
+        if (browseUrl == null) {
+            SCM scm = build.getProject().getScm();
+            if (scm instanceof FossilScm) {
+                String url = ((FossilScm) scm).getServerUrl();
+                browseUrl = url.endsWith("/") ? url : url + "/";
+            }
+        }
+        return browseUrl;
+    }
+
     /**
      * @return the kind of changelog list this is (fossil)
      */
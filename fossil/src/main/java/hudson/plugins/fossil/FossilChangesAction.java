@@ -0,0 +1,332 @@
+package hudson.plugins.fossil;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.model.TransientBuildActionFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import javax.servlet.http.HttpServletResponse;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.xml.sax.SAXException;
+
+/**
+ * Serves the changes of a build a page at a time at <tt>/job/NAME/NUMBER/fossil/changes</tt>.
+ *
+ * The remote API (<tt>api/json?depth=2</tt>) turns every change of the build into objects first, and looks
+ * up a Jenkins user for every author.  This endpoint reads the change log file line by line instead and
+ * writes each checkin as soon as it is read, with only the fields asked for.  Parameters:
+ * <ul>
+ * <li><tt>limit</tt>: checkins per page (default {@link #DEFAULT_LIMIT}, at most {@link #MAX_LIMIT})</li>
+ * <li><tt>cursor</tt>: the <tt>next</tt> value of the previous page (omit for the first page)</li>
+ * <li><tt>fields</tt>: a comma separated subset of {@link #FIELDS} (default all)</li>
+ * </ul>
+ * The answer is <tt>{"changes":[...],"next":"CURSOR"}</tt>, newest checkin first; <tt>next</tt> is null on
+ * the last page.  For a change log in the {@link FossilChangeLogFormat} the cursor is the offset of the
+ * next record in the file, so a page costs the same no matter how deep it is.  Change logs written by
+ * older versions (timeline text) are parsed whole, and the cursor is an index.
+ *
+ * @author Ron Perrella
+ */
+public class FossilChangesAction implements Action {
+
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAX_LIMIT = 1000;
+    static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "id", "time", "date", "author", "msg", "tags", "parents", "files"));
+
+    private final AbstractBuild<?, ?> build;
+
+    FossilChangesAction(AbstractBuild<?, ?> build) {
+        this.build = build;
+    }
+
+    /**
+     * @return null, the action is only an URL
+     */
+    public String getIconFileName() {
+        return null;
+    }
+
+    /**
+     * @return null, the action is only an URL
+     */
+    public String getDisplayName() {
+        return null;
+    }
+
+    /**
+     * @return the URL name for this action
+     */
+    public String getUrlName() {
+        return "fossil";
+    }
+
+    /**
+     * Write a page of changes.
+     *
+     * @param req the request: limit, cursor and fields
+     * @param rsp the response: JSON, or 400 for a bad parameter
+     * @throws IOException
+     */
+    public void doChanges(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        int limit = DEFAULT_LIMIT;
+        Set<String> fields = new HashSet<String>(FIELDS);
+        long cursor = 0;
+        try {
+            if (req.getParameter("limit") != null) {
+                limit = Math.min(MAX_LIMIT, Math.max(1, Integer.parseInt(req.getParameter("limit").trim())));
+            }
+            if (req.getParameter("cursor") != null && req.getParameter("cursor").trim().length() > 0) {
+                cursor = Long.parseLong(req.getParameter("cursor").trim());
+            }
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit and cursor must be numbers");
+            return;
+        }
+        if (req.getParameter("fields") != null && req.getParameter("fields").trim().length() > 0) {
+            fields.clear();
+            for (String f : req.getParameter("fields").split(",")) {
+                if (!FIELDS.contains(f.trim())) {
+                    rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown field '" + f.trim() + "'; known fields are " + FIELDS);
+                    return;
+                }
+                fields.add(f.trim());
+            }
+        }
+
+        File changelog = new File(build.getRootDir(), "changelog.xml");
+        boolean records = changelog.isFile() && isRecordFormat(changelog);
+        if (records && !isRecordStart(changelog, cursor)) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not a cursor of this change log: " + cursor);
+            return;
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        Writer w = rsp.getCompressedWriter(req);
+        try {
+            w.write("{\"changes\":[");
+            String next;
+            if (!changelog.isFile()) {
+                next = null;
+            } else if (records) {
+                next = writeRecords(changelog, cursor, limit, fields, w);
+            } else {
+                next = writeTimeline(changelog, cursor, limit, fields, w);
+            }
+            w.write("],\"next\":");
+            w.write(next == null ? "null" : "\"" + next + "\"");  // digits only.
+            w.write("}");
+        } finally {
+            w.close();
+        }
+    }
+
+    private static boolean isRecordFormat(File changelog) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(changelog), "UTF-8"));
+        try {
+            String first = in.readLine();
+            return first != null && first.startsWith(FossilChangeLogFormat.HEADER);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return true if offset is 0 or just after a newline of the change log
+     */
+    static boolean isRecordStart(File changelog, long offset) throws IOException {
+        if (offset == 0) {
+            return true;
+        }
+        if (offset < 0 || offset > changelog.length()) {
+            return false;
+        }
+        InputStream in = new FileInputStream(changelog);
+        try {
+            skipFully(in, offset - 1);
+            return in.read() == '\n';
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stream records of the {@link FossilChangeLogFormat}, starting at a byte offset (see
+     * {@link #isRecordStart(File, long)}).
+     *
+     * @return the offset of the record after the page, or null if there is none
+     */
+    static String writeRecords(File changelog, long offset, int limit, Set<String> fields, Writer w) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(changelog));
+        try {
+            skipFully(in, offset);
+            long pos = offset;
+            SimpleDateFormat iso = isoFormat();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int written = 0;
+            boolean eof = false;
+            while (!eof) {
+                long start = pos;
+                line.reset();
+                int b;
+                while ((b = in.read()) >= 0 && b != '\n') {
+                    line.write(b);
+                    pos++;
+                }
+                if (b < 0) {
+                    eof = true;
+                } else {
+                    pos++;
+                }
+                FossilCheckin ci = FossilChangeLogFormat.parse(line.toString("UTF-8"));
+                if (ci == null) {
+                    continue;  // the header, or not a record.
+                }
+                if (written == limit) {
+                    return String.valueOf(start);
+                }
+                w.write(written++ > 0 ? "," : "");
+                w.write(toJson(ci, fields, iso).toString());
+            }
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Change logs in timeline text are parsed whole; they come from old builds and are small.
+     *
+     * @return the index of the entry after the page, or null if there is none
+     */
+    private static String writeTimeline(File changelog, long index, int limit, Set<String> fields, Writer w) throws IOException {
+        List<FossilChangeLogEntry> entries;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(changelog), "UTF-8"));
+        try {
+            entries = new FossilChangeLogParser().buffered_parse(in);
+        } catch (SAXException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            in.close();
+        }
+        SimpleDateFormat iso = isoFormat();
+        int from = (int) Math.max(0, Math.min(index, entries.size()));
+        int to = Math.min(entries.size(), from + limit);
+        for (int i = from; i < to; i++) {
+            FossilChangeLogEntry e = entries.get(i);
+            List<FossilCheckin.FileChange> files = new ArrayList<FossilCheckin.FileChange>();
+            for (FossilAffectedFile f : e.getAffectedFiles()) {
+                files.add(new FossilCheckin.FileChange(op(f), f.getPath()));
+            }
+            FossilCheckin ci = new FossilCheckin(e.getCommitId(), 0, e.getAuthorName(), e.getMsg(), e.getTags(),
+                    Collections.<String>emptyList(), files);
+            JSONObject o = toJson(ci, fields, iso);
+            if (fields.contains("date")) {
+                o.put("date", e.getDate());  // only the day is known.
+            }
+            o.remove("time");
+            w.write(i > from ? "," : "");
+            w.write(o.toString());
+        }
+        return to < entries.size() ? String.valueOf(to) : null;
+    }
+
+    private static char op(FossilAffectedFile f) {
+        String type = f.getEditType().getName();
+        return "add".equals(type) ? 'A' : "delete".equals(type) ? 'D' : 'E';
+    }
+
+    /**
+     * @param ci a checkin
+     * @param fields the fields to include
+     * @param iso formats the date
+     * @return the checkin as JSON, with the Fossil user name as the author
+     */
+    static JSONObject toJson(FossilCheckin ci, Set<String> fields, SimpleDateFormat iso) {
+        JSONObject o = new JSONObject();
+        if (fields.contains("id")) {
+            o.put("id", ci.getUuid());
+        }
+        if (fields.contains("time")) {
+            o.put("time", ci.getTimestamp());
+        }
+        if (fields.contains("date")) {
+            o.put("date", iso.format(new Date(ci.getTimestamp() * 1000L)));
+        }
+        if (fields.contains("author")) {
+            o.put("author", ci.getUser());
+        }
+        if (fields.contains("msg")) {
+            o.put("msg", ci.getComment());
+        }
+        if (fields.contains("tags")) {
+            o.put("tags", JSONArray.fromObject(ci.getTags()));
+        }
+        if (fields.contains("parents")) {
+            o.put("parents", JSONArray.fromObject(ci.getParents()));
+        }
+        if (fields.contains("files")) {
+            JSONArray files = new JSONArray();
+            for (FossilCheckin.FileChange f : ci.getFiles()) {
+                JSONObject file = new JSONObject();
+                file.put("path", f.getPath());
+                file.put("editType", f.getOp() == 'A' ? "add" : f.getOp() == 'D' ? "delete" : "edit");
+                files.add(file);
+            }
+            o.put("files", files);
+        }
+        return o;
+    }
+
+    private static SimpleDateFormat isoFormat() {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return iso;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("cursor past the end of the change log");
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Adds the action to every build of a job that uses Fossil.
+     */
+    @Extension
+    public static final class Factory extends TransientBuildActionFactory {
+
+        @Override
+        public Collection<? extends Action> createFor(Run target) {
+            if (target instanceof AbstractBuild && ((AbstractBuild<?, ?>) target).getProject().getScm() instanceof FossilScm) {
+                return Collections.singleton(new FossilChangesAction((AbstractBuild<?, ?>) target));
+            }
+            return Collections.<Action>emptyList();
+        }
+    }
+}
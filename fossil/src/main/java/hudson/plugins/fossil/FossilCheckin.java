@@ -0,0 +1,175 @@
+package hudson.plugins.fossil;
+
+import hudson.scm.EditType;
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * A single Fossil checkin as reported by the server (or the local repository): full hash, time, user,
+ * comment, tags, parents and the files it changed.
+ *
+ * This is a plain value that can be cached and shipped between master and slave.  It can be turned into
+ * a {@link FossilChangeLogEntry} for display.
+ *
+ * @author Ron Perrella
+ */
+public class FossilCheckin implements Serializable {
+
+    private final String uuid;
+    private final long timestamp;  // seconds since the epoch (UTC)
+    private final String user;
+    private final String comment;
+    private final List<String> tags;
+    private final List<String> parents;
+    private final List<FileChange> files;
+
+    /**
+     * @param uuid full checkin hash
+     * @param timestamp seconds since the epoch (UTC)
+     * @param user the user who made the checkin
+     * @param comment the checkin comment
+     * @param tags tags on the checkin (may be empty)
+     * @param parents parent checkin hashes, primary parent first (may be empty)
+     * @param files files changed by the checkin (may be empty)
+     */
+    public FossilCheckin(String uuid, long timestamp, String user, String comment,
+            List<String> tags, List<String> parents, List<FileChange> files) {
+        this.uuid = uuid;
+        this.timestamp = timestamp;
+        this.user = user == null ? "" : user;
+        this.comment = comment == null ? "" : comment;
+        this.tags = Collections.unmodifiableList(new ArrayList<String>(tags));
+        this.parents = Collections.unmodifiableList(new ArrayList<String>(parents));
+        this.files = Collections.unmodifiableList(new ArrayList<FileChange>(files));
+    }
+
+    /**
+     * @return the full checkin hash
+     */
+    public String getUuid() {
+        return uuid;
+    }
+
+    /**
+     * @return seconds since the epoch (UTC)
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the user who made the checkin
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the checkin comment
+     */
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * @return tags on the checkin
+     */
+    public List<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return parent checkin hashes, primary parent first
+     */
+    public List<String> getParents() {
+        return parents;
+    }
+
+    /**
+     * @return files changed by the checkin
+     */
+    public List<FileChange> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return a change log entry representing this checkin.
+     */
+    public FossilChangeLogEntry toChangeLogEntry() {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        FossilChangeLogEntry entry = new FossilChangeLogEntry();
+        entry.setRevid(uuid);
+        entry.setDate(df.format(new Date(timestamp * 1000L)));
+        entry.setAuthor(user);
+        entry.setAuthorEmail("");
+        entry.setMsg(comment);
+        entry.setTags(new ArrayList<String>(tags));
+        entry.setMerge(parents.size() > 1);
+        for (FileChange f : files) {
+            entry.addAffectedFile(new FossilAffectedFile(f.getEditType(), f.getPath()));
+        }
+        return entry;
+    }
+
+    @Override
+    public String toString() {
+        return "FossilCheckin " + uuid;
+    }
+
+    /**
+     * A file added, edited or deleted by a checkin.
+     */
+    public static final class FileChange implements Serializable {
+
+        private final char op;  // 'A', 'E' or 'D'
+        private final String path;
+
+        /**
+         * @param op 'A' (added), 'E' (edited) or 'D' (deleted)
+         * @param path full file path in the repository
+         */
+        public FileChange(char op, String path) {
+            this.op = op;
+            this.path = path;
+        }
+
+        /**
+         * @return 'A' (added), 'E' (edited) or 'D' (deleted)
+         */
+        public char getOp() {
+            return op;
+        }
+
+        /**
+         * @return full file path in the repository
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the Jenkins edit type for this change
+         */
+        public EditType getEditType() {
+            switch (op) {
+                case 'A':
+                    return EditType.ADD;
+                case 'D':
+                    return EditType.DELETE;
+                default:
+                    return EditType.EDIT;
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
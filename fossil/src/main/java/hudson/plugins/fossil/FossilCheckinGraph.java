@@ -0,0 +1,291 @@
+package hudson.plugins.fossil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The parent/child graph of the checkins in one repository.
+ *
+ * Checkins are numbered densely in the order they are added; parents and times live in primitive arrays
+ * indexed by that number, so even a large history costs a few bytes per checkin.  The graph is loaded
+ * from the repository's <tt>plink</tt> table with <tt>fossil sql</tt> and then extended with only the
+ * rows added since (see {@link #loadQuery()} and {@link #load(String)}).
+ *
+ * Walks go from newest to oldest by checkin time and stop as soon as the answer is known, the way
+ * <tt>git merge-base</tt> does, so a query over a short range touches a handful of checkins no matter how
+ * long the history is.
+ *
+ * Instances are not thread safe; {@link FossilCheckoutTask} uses one per repository under the
+ * repository lock.
+ *
+ * @author Ron Perrella
+ */
+final class FossilCheckinGraph {
+
+    private static final char US = FossilChangeLogFormat.US;
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private String[] uuids = new String[256];
+    private long[] times = new long[256];         // seconds since the epoch (0 if unknown)
+    private int[] primaryParent = new int[256];   // -1 for a root
+    private int[] mergeHead = new int[256];       // first merge edge of a checkin, -1 if none
+    private int[] edgeParent = new int[256];      // merge edges, as linked lists
+    private int[] edgeNext = new int[256];
+    private int size = 0;
+    private int edges = 0;     // plink rows loaded
+    private int mergeEdges = 0;
+    private long lastRid = 0;  // highest plink.cid loaded
+    private String lastUuid = "";
+
+    /**
+     * @return the number of checkins in the graph
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param uuid a full checkin hash
+     * @return true if the graph knows the checkin.
+     */
+    boolean contains(String uuid) {
+        return ids.containsKey(uuid);
+    }
+
+    private int id(String uuid) {
+        Integer id = ids.get(uuid);
+        if (id != null) {
+            return id;
+        }
+        if (size == uuids.length) {
+            int n = size * 2;
+            uuids = Arrays.copyOf(uuids, n);
+            times = Arrays.copyOf(times, n);
+            primaryParent = Arrays.copyOf(primaryParent, n);
+            mergeHead = Arrays.copyOf(mergeHead, n);
+        }
+        uuids[size] = uuid;
+        primaryParent[size] = -1;
+        mergeHead[size] = -1;
+        ids.put(uuid, size);
+        return size++;
+    }
+
+    /**
+     * Add a parent link.
+     *
+     * @param child the child checkin hash
+     * @param childTime the child's time, seconds since the epoch
+     * @param parent the parent checkin hash
+     * @param primary true if this is the child's primary parent (false for merged-in parents)
+     */
+    void addLink(String child, long childTime, String parent, boolean primary) {
+        int c = id(child);
+        int p = id(parent);
+        times[c] = childTime;
+        if (primary) {
+            primaryParent[c] = p;
+        } else {
+            if (mergeEdges == edgeParent.length) {
+                edgeParent = Arrays.copyOf(edgeParent, mergeEdges * 2);
+                edgeNext = Arrays.copyOf(edgeNext, mergeEdges * 2);
+            }
+            edgeParent[mergeEdges] = p;
+            edgeNext[mergeEdges] = mergeHead[c];
+            mergeHead[c] = mergeEdges++;
+        }
+        edges++;
+    }
+
+    /**
+     * @return the SQL that lists the plink rows not loaded yet, preceded by a line that tells whether the
+     *         repository is still the one loaded so far (see {@link #load(String)}).
+     */
+    String loadQuery() {
+        return "SELECT 'N' || char(31) || count(*) || char(31)"
+                + " || coalesce((SELECT uuid FROM blob WHERE rid = " + lastRid + "), '') FROM plink;\n"
+                + "SELECT l.cid || char(31) || c.uuid || char(31) || p.uuid || char(31) || l.isprim"
+                + " || char(31) || coalesce((SELECT CAST(round((e.mtime - 2440587.5) * 86400) AS INTEGER)"
+                + "      FROM event e WHERE e.objid = l.cid), 0)"
+                + " FROM plink l JOIN blob c ON c.rid = l.cid JOIN blob p ON p.rid = l.pid"
+                + " WHERE l.cid > " + lastRid + " ORDER BY l.cid;\n";
+    }
+
+    /**
+     * Add the rows produced by {@link #loadQuery()}.
+     *
+     * @param output the output of <tt>fossil sql</tt>
+     * @return false if the repository was replaced or rewritten since the last load (e.g. re-cloned); the
+     *         caller should then start over with a new graph.
+     * @throws IOException
+     */
+    boolean load(String output) throws IOException {
+        BufferedReader in = new BufferedReader(new StringReader(output));
+        String s = in.readLine();
+        if (s == null || !s.startsWith("N" + US)) {
+            return false;
+        }
+        String[] meta = s.split(String.valueOf(US), -1);
+        long total = Long.parseLong(meta[1]);
+        if (lastRid > 0 && !lastUuid.equals(meta[2])) {
+            return false;  // rids were reassigned.
+        }
+        while ((s = in.readLine()) != null) {
+            String[] f = s.split(String.valueOf(US), -1);
+            if (f.length < 5) {
+                continue;
+            }
+            addLink(f[1], Long.parseLong(f[4]), f[2], "1".equals(f[3]));
+            long rid = Long.parseLong(f[0]);
+            if (rid > lastRid) {
+                lastRid = rid;
+                lastUuid = f[1];
+            }
+        }
+        return edges == total;
+    }
+
+    /**
+     * @param ancestor a checkin hash
+     * @param descendant a checkin hash
+     * @return true if ancestor is descendant or one of its ancestors.
+     */
+    boolean isAncestor(String ancestor, String descendant) {
+        Integer a = ids.get(ancestor);
+        Integer d = ids.get(descendant);
+        if (a == null || d == null) {
+            return false;
+        }
+        return paint(a, d).onlyFirst.isEmpty();
+    }
+
+    /**
+     * @param a a checkin hash
+     * @param b a checkin hash
+     * @return the newest common ancestor of the two checkins, or null if they share none.
+     */
+    String mergeBase(String a, String b) {
+        Integer x = ids.get(a);
+        Integer y = ids.get(b);
+        if (x == null || y == null) {
+            return null;
+        }
+        Walk w = paint(x, y);
+        return w.base < 0 ? null : uuids[w.base];
+    }
+
+    /**
+     * The checkins that are ancestors of newRevId (itself included) but not of oldRevId - i.e. what a
+     * workspace gained by moving from old to new, even across a branch switch or a rollback (which gains
+     * nothing).
+     *
+     * @param oldRevId the checkin before
+     * @param newRevId the checkin after
+     * @return the hashes, newest first; null if either checkin is unknown.
+     */
+    List<String> between(String oldRevId, String newRevId) {
+        Integer o = ids.get(oldRevId);
+        Integer n = ids.get(newRevId);
+        if (o == null || n == null) {
+            return null;
+        }
+        List<String> result = new ArrayList<String>();
+        for (int id : paint(n, o).onlyFirst) {
+            result.add(uuids[id]);
+        }
+        return result;
+    }
+
+    private static final int FIRST = 1;
+    private static final int SECOND = 2;
+    private static final int BOTH = FIRST | SECOND;
+
+    /**
+     * Paint the ancestors of two checkins, newest first, until only checkins reachable from both remain.
+     */
+    private Walk paint(int first, int second) {
+        Walk w = new Walk();
+        Map<Integer, Integer> color = new HashMap<Integer, Integer>();
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(16, new Comparator<Integer>() {
+            public int compare(Integer p, Integer q) {
+                int c = times[q] < times[p] ? -1 : times[q] > times[p] ? 1 : 0;
+                return c != 0 ? c : q - p;  // newer (then later added) first
+            }
+        });
+        BitSet queued = new BitSet(size);
+        color.put(first, FIRST);
+        color.put(second, first == second ? BOTH : SECOND);
+        queue.add(first);
+        queued.set(first);
+        if (first != second) {
+            queue.add(second);
+            queued.set(second);
+        }
+        int pendingNonBoth = first == second ? 0 : 2;
+
+        while (!queue.isEmpty() && pendingNonBoth > 0) {
+            int c = queue.poll();
+            queued.clear(c);
+            int paint = color.get(c);
+            if (paint != BOTH) {
+                pendingNonBoth--;
+            }
+            if (paint == FIRST) {
+                w.onlyFirst.add(c);
+            } else if (paint == BOTH && w.base < 0) {
+                w.base = c;
+            }
+            int p = primaryParent[c];
+            int e = mergeHead[c];
+            while (p >= 0) {
+                Integer old = color.get(p);
+                int merged = (old == null ? 0 : old) | paint;
+                if (old == null || old != merged) {
+                    color.put(p, merged);
+                    if (queued.get(p)) {
+                        if (merged == BOTH) {
+                            pendingNonBoth--;
+                        }
+                    } else {
+                        queue.add(p);
+                        queued.set(p);
+                        if (merged != BOTH) {
+                            pendingNonBoth++;
+                        }
+                    }
+                }
+                if (e >= 0) {
+                    p = edgeParent[e];
+                    e = edgeNext[e];
+                } else {
+                    p = -1;
+                }
+            }
+        }
+        if (w.base < 0 && !queue.isEmpty()) {
+            w.base = queue.peek();  // only common ancestors are left; this is the newest.
+        }
+        // with skewed clocks a checkin may be found common after it was taken as new.
+        for (Iterator<Integer> i = w.onlyFirst.iterator(); i.hasNext();) {
+            if (color.get(i.next()) != FIRST) {
+                i.remove();
+            }
+        }
+        return w;
+    }
+
+    private static final class Walk {
+        final List<Integer> onlyFirst = new ArrayList<Integer>();
+        int base = -1;
+    }
+}
@@ -0,0 +1,119 @@
+package hudson.plugins.fossil;
+
+import hudson.Util;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The outcome of a {@link FossilCheckoutTask}, shipped back from the slave in one piece.
+ *
+ * Revisions are carried as plain strings (rather than {@link FossilRevisionState}) so that
+ * the result stays a simple serializable value.
+ *
+ * @author Ron Perrella
+ */
+public class FossilCheckoutResult implements Serializable {
+
+    private final boolean success;
+    private final String oldRevId;
+    private final String newRevId;
+    private final String newRevDate;
+    private final byte[] changelog;
+
+    /**
+     * @param success true if the workspace was populated successfully
+     * @param oldRevId the checkin the workspace was at before the update (may be null)
+     * @param newRevId the checkin the workspace is at after the update (may be null)
+     * @param newRevDate when the new checkin was made, as <tt>fossil info</tt> says (may be null)
+     * @param changelog the gzip-compressed timeline between the two checkins (may be null)
+     */
+    FossilCheckoutResult(boolean success, String oldRevId, String newRevId, String newRevDate, byte[] changelog) {
+        this.success = success;
+        this.oldRevId = oldRevId;
+        this.newRevId = newRevId;
+        this.newRevDate = newRevDate;
+        this.changelog = changelog;
+    }
+
+    /**
+     * @return a failed result
+     */
+    static FossilCheckoutResult failure() {
+        return new FossilCheckoutResult(false, null, null, null, null);
+    }
+
+    /**
+     * @return true if the workspace was populated successfully
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return revision state before the update, or null if it could not be determined.
+     */
+    public FossilRevisionState getOldRevisionState() {
+        return oldRevId == null ? null : new FossilRevisionState(oldRevId);
+    }
+
+    /**
+     * @return revision state after the update, or null if it could not be determined.
+     */
+    public FossilRevisionState getNewRevisionState() {
+        return newRevId == null ? null : new FossilRevisionState(newRevId);
+    }
+
+    /**
+     * @return when the checkin after the update was made, in ms since the epoch, or 0 if not known.
+     */
+    public long getNewRevisionTime() {
+        if (newRevDate == null || newRevDate.length() < 19) {
+            return 0;
+        }
+        try {
+            SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            f.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return f.parse(newRevDate.substring(0, 19)).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if a change log was computed on the slave.
+     */
+    public boolean hasChangelog() {
+        return changelog != null;
+    }
+
+    /**
+     * Decompress the change log into the given file.
+     *
+     * @param changelogFile the build's change log file on the master
+     * @throws IOException
+     */
+    public void writeChangelog(File changelogFile) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(changelog));
+        try {
+            OutputStream out = new FileOutputStream(changelogFile);
+            try {
+                Util.copyStream(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
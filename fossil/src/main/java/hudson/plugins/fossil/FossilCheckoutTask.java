@@ -0,0 +1,1164 @@
+package hudson.plugins.fossil;
+
+import hudson.EnvVars;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Launcher.LocalLauncher;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Performs the whole checkout sequence on the machine that owns the workspace.
+ *
+ * Every step of a checkout (probing for the repository, pull or clone, update, revision lookup and
+ * change log) used to be a separate remote call from the master.  On a high-latency slave link that
+ * added up to dozens of round trips per build.  This callable is shipped to the slave once via
+ * {@link hudson.FilePath#act(FileCallable)}, runs the Fossil commands locally, and returns a
+ * {@link FossilCheckoutResult}.
+ *
+ * @author Ron Perrella
+ */
+public class FossilCheckoutTask implements FileCallable<FossilCheckoutResult> {
+
+    private final String fossilExecutable;
+    private final String localRepository;
+    private final String serverUrl;
+    private final String authenticatedServerUrl;
+    private final String buildTag;
+    private final boolean cleanBuild;
+    private final EnvVars env;
+    private final BuildListener listener;
+    private static final Map<String, Object> repositoryLocks = new HashMap<String, Object>();  // per JVM, i.e. per node.
+    private static final Map<String, FossilCheckinGraph> graphs = new HashMap<String, FossilCheckinGraph>();  // likewise.
+    private transient FossilClientInfo client;
+    private transient boolean keepOpen;    // the client leaves .fslckout in the workspace between builds.
+    private transient String revisionDate;  // checkin time found by the last getRevision().
+    private boolean preserveTimestamps;    // never rewrite a file whose content is already right.
+    private String bundle;                 // workspace file with checkins handed down by an upstream build.
+    private long snapshotBudget;           // bytes the node's snapshot cache may take (0 for no cache).
+    private OutputStream rawLog;          // quiet mode: where the raw fossil output goes (on the master).
+    private transient OutputStream raw;
+    private String precomputedOldRevId;   // the master already has the change log for this pair.
+    private String precomputedNewRevId;
+
+    /**
+     * @param fossilExecutable the fossil program to run on the slave
+     * @param localRepository the repository file name, relative to the workspace or absolute (shared)
+     * @param serverUrl the server URL (safe to log)
+     * @param authenticatedServerUrl the server URL with credentials (never logged)
+     * @param buildTag the checkin to update to
+     * @param cleanBuild true if the user asked for a clean workspace
+     * @param env build environment for the fossil processes
+     * @param listener where logs are sent
+     */
+    FossilCheckoutTask(String fossilExecutable, String localRepository, String serverUrl, String authenticatedServerUrl,
+            String buildTag, boolean cleanBuild, EnvVars env, BuildListener listener) {
+        this.fossilExecutable = fossilExecutable;
+        this.localRepository = localRepository;
+        this.serverUrl = serverUrl;
+        this.authenticatedServerUrl = authenticatedServerUrl;
+        this.buildTag = buildTag;
+        this.cleanBuild = cleanBuild;
+        this.env = env;
+        this.listener = listener;
+    }
+
+    /**
+     * Tell the task that the master already knows the change log between these two revisions
+     * (see {@link FossilPollCache}), so no timeline needs to be run if the checkout lands on them.
+     *
+     * @param oldRevId the revision polling used as a baseline
+     * @param newRevId the remote tip polling found
+     */
+    void skipChangelogFor(String oldRevId, String newRevId) {
+        this.precomputedOldRevId = oldRevId;
+        this.precomputedNewRevId = newRevId;
+    }
+
+    /**
+     * Leave files whose content is already right untouched: open with <tt>--keep</tt> and restore only the
+     * files that differ, instead of letting <tt>open</tt> rewrite the whole tree.
+     */
+    void preserveTimestamps() {
+        this.preserveTimestamps = true;
+    }
+
+    /**
+     * Import a bundle from an upstream build before updating (see {@link FossilBundlePublisher}); the pull is
+     * skipped if the bundle brought in the checkin to build.
+     *
+     * @param bundle the bundle file, relative to the workspace
+     */
+    void importBundle(String bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Fill fresh workspaces from the node's {@link FossilSnapshotCache} when it has the checkin, and add the
+     * checkin to it when it does not.
+     *
+     * @param budget how many bytes the cache may take on the node
+     */
+    void useSnapshotCache(long budget) {
+        this.snapshotBudget = budget;
+    }
+
+    /**
+     * Quiet mode: send the output of clone, pull, update and open to a compressed side file instead of the
+     * build log, which only gets a summary of each (see {@link FossilOutputSummary}).
+     *
+     * @param rawLog the side file, e.g. a {@link hudson.remoting.RemoteOutputStream}; closed by the task
+     */
+    void summarizeOutput(OutputStream rawLog) {
+        this.rawLog = rawLog;
+    }
+
+    /**
+     * @return where the output of a bulky fossil command goes: the build log, or a summary in quiet mode.
+     */
+    private OutputStream console(String step) {
+        return raw == null ? listener.getLogger() : new FossilOutputSummary(step, raw);
+    }
+
+    /**
+     * In quiet mode, print the summary of a command's output.
+     */
+    private void report(OutputStream console, boolean ok) {
+        if (console instanceof FossilOutputSummary) {
+            ((FossilOutputSummary) console).report(listener.getLogger(), ok);
+        }
+    }
+
+    /**
+     * Runs on the slave.
+     *
+     * @param workspace the local workspace directory
+     * @param channel unused
+     * @return the outcome of the checkout
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public FossilCheckoutResult invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        if (rawLog != null) {
+            raw = new GZIPOutputStream(rawLog);  // compressed here, before it crosses the channel.
+        }
+        try {
+            return checkout(workspace);
+        } finally {
+            if (raw != null) {
+                raw.close();
+                listener.getLogger().println("info: full fossil output saved in " + RAW_LOG + " in the build directory");
+            }
+        }
+    }
+
+    private FossilCheckoutResult checkout(File workspace) throws IOException, InterruptedException {
+        Launcher launcher = new LocalLauncher(listener);
+
+        client = detectClient(launcher, workspace);
+        keepOpen = client.canKeepCheckoutOpen();
+
+        /*
+         * Determine if a localRepository is already present in the workspace. If so, it may be possible to perform
+         * an "pull" + "update" rather than a "clone" (which is slower).
+         */
+        boolean canUpdate = repository(workspace).exists();
+
+        listener.getLogger().println("info: CanUpdate: " + (canUpdate ? "true" : "false"));
+
+        String oldRevId = getRevision(launcher, workspace);
+
+        if (cleanBuild) {
+            fossil_clean_workspace(launcher, workspace);
+        } else {
+            listener.getLogger().println("info: Not cleaning workspace (as requested by user) ...");
+        }
+
+        /*
+         * A shared repository is never deleted for a clean build (other jobs use it), and only one
+         * job at a time may clone or pull into it.
+         */
+        synchronized (lockFor(repository(workspace))) {
+            try {
+                canUpdate = repository(workspace).exists();
+                if (canUpdate && (!cleanBuild || isSharedRepository())) {
+                    if (!populate_workspace_from_pull(launcher, workspace)) {
+                        return FossilCheckoutResult.failure();
+                    }
+                } else {
+                    if (!populate_workspace_from_clone(launcher, workspace)) {
+                        return FossilCheckoutResult.failure();
+                    }
+                }
+            } finally {
+                if (bundle != null) {
+                    discardBundle(workspace);  // not imported if an earlier step failed.
+                }
+            }
+        }
+
+        String newRevId = getRevision(launcher, workspace);
+
+        byte[] changelog = null;
+        if (oldRevId != null && oldRevId.equals(precomputedOldRevId) && newRevId != null && newRevId.equals(precomputedNewRevId)) {
+            listener.getLogger().println("info: change log already computed while polling.");
+        } else if (oldRevId != null && newRevId != null) {
+            if (client.canQueryRepository()) {
+                changelog = queryLogBetweenRevisions(launcher, workspace, oldRevId, newRevId);
+            }
+            if (changelog == null) {
+                changelog = getLogBetweenRevisions(launcher, workspace, oldRevId, newRevId);
+            }
+        }
+
+        return new FossilCheckoutResult(true, oldRevId, newRevId, revisionDate, changelog);
+    }
+
+    /**
+     * An absolute repository path names a repository shared by all jobs on the node (e.g. the branch jobs
+     * created by {@link FossilBranchDiscovery}); a relative one lives in the workspace.
+     */
+    private File repository(File workspace) {
+        return repository(workspace, localRepository);
+    }
+
+    static File repository(File workspace, String localRepository) {
+        File repo = new File(localRepository);
+        return repo.isAbsolute() ? repo : new File(workspace, localRepository);
+    }
+
+    /**
+     * @return true if the workspace holds an open checkout (only tracked when the client can keep it open).
+     */
+    private boolean isCheckoutOpen(File workspace) {
+        return keepOpen && new File(workspace, CHECKOUT_DB).exists();
+    }
+
+    /**
+     * Find out which fossil client this node runs, asking <tt>fossil version</tt> only the first time
+     * (or after the executable changed).
+     *
+     * @param launcher
+     * @param workspace
+     * @return the client info; version "0.0" (no optional features) if it could not be determined.
+     * @throws InterruptedException
+     */
+    private FossilClientInfo detectClient(Launcher launcher, File workspace) throws InterruptedException {
+        File exe = resolveExecutable();
+        String key = (exe == null ? fossilExecutable : exe.getAbsolutePath()) + "@" + (exe == null ? 0 : exe.lastModified());
+
+        FossilClientInfo info = FossilClientInfo.getDetected(key);
+        if (info == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                ArgumentListBuilder args = new ArgumentListBuilder();
+                args.add(fossilExecutable, "version");
+                fossil(launcher, workspace, args, out);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to run fossil version: ", e);
+            }
+            info = FossilClientInfo.parse(out.toString());
+            if (info.getVersionNumber() > 0) {
+                FossilClientInfo.setDetected(key, info);
+            }
+        }
+        listener.getLogger().println("info: client: " + info);
+        return info;
+    }
+
+    /**
+     * @return the fossil executable this node will run, or null if it cannot be found on the PATH.
+     */
+    private File resolveExecutable() {
+        File exe = new File(fossilExecutable);
+        if (exe.isAbsolute() || fossilExecutable.indexOf(File.separatorChar) >= 0) {
+            return exe.exists() ? exe : null;
+        }
+        String path = env.get("PATH");
+        if (path == null) {
+            path = System.getenv("PATH");
+        }
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                for (String name : new String[]{fossilExecutable, fossilExecutable + ".exe"}) {
+                    File f = new File(dir, name);
+                    if (f.isFile()) {
+                        return f;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isSharedRepository() {
+        return new File(localRepository).isAbsolute();
+    }
+
+    /**
+     * @return the object to synchronize on while cloning or pulling into the given repository.
+     */
+    static Object lockFor(File repo) {
+        String key = repositoryKey(repo);
+        synchronized (repositoryLocks) {
+            Object lock = repositoryLocks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                repositoryLocks.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    private static String repositoryKey(File repo) {
+        try {
+            return repo.getCanonicalPath();
+        } catch (IOException e) {
+            return repo.getAbsolutePath();
+        }
+    }
+
+    /**
+     * The checkin graph of the repository, brought up to date with the checkins added since it was last
+     * used.  Must be called under {@link #lockFor(File)}.
+     *
+     * @return the graph, or null if the repository could not be queried.
+     */
+    private FossilCheckinGraph checkinGraph(Launcher launcher, File workspace) throws InterruptedException {
+        String key = repositoryKey(repository(workspace));
+        FossilCheckinGraph graph;
+        synchronized (graphs) {
+            graph = graphs.get(key);
+        }
+        try {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                if (graph == null) {
+                    graph = new FossilCheckinGraph();
+                }
+                ArgumentListBuilder args = new ArgumentListBuilder();
+                args.add(fossilExecutable, "sql", "-R", localRepository);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+                InputStream sql = new ByteArrayInputStream(graph.loadQuery().getBytes("UTF-8"));
+                int ret = fossil(launcher, workspace, args, sql, out, stderr);
+                if (ret != 0 || stderr.size() > 0) {
+                    logger.log(Level.WARNING, "fossil sql returned {0}: {1}", new Object[]{ret, stderr.toString()});
+                    return null;
+                }
+                if (graph.load(out.toString("UTF-8"))) {
+                    synchronized (graphs) {
+                        graphs.put(key, graph);
+                    }
+                    return graph;
+                }
+                graph = null;  // the repository was replaced; load it from scratch.
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load checkin graph: ", e);
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Failed to load checkin graph: ", e);
+        }
+        synchronized (graphs) {
+            graphs.remove(key);
+        }
+        return null;
+    }
+
+    /**
+     * Run a single fossil command in the workspace, subject to the subcommand's timeout.
+     *
+     * @param launcher
+     * @param workspace
+     * @param args the command, including the fossil executable
+     * @param stdout where the command output goes
+     * @return the exit code of the command
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private int fossil(Launcher launcher, File workspace, ArgumentListBuilder args, OutputStream stdout)
+            throws IOException, InterruptedException {
+        return fossil(launcher, workspace, args, stdout, stdout);
+    }
+
+    private int fossil(Launcher launcher, File workspace, ArgumentListBuilder args, OutputStream stdout, OutputStream stderr)
+            throws IOException, InterruptedException {
+        return fossil(launcher, workspace, args, null, stdout, stderr);
+    }
+
+    private int fossil(Launcher launcher, File workspace, ArgumentListBuilder args, InputStream stdin, OutputStream stdout, OutputStream stderr)
+            throws IOException, InterruptedException {
+        Proc proc = launcher.launch().cmds(args).envs(env).stdin(stdin).stdout(stdout).stderr(stderr).pwd(workspace).start();
+        return FossilProcess.join(proc, args.toList().get(1), listener);
+    }
+
+    /**
+     * A clean build deletes no files from the workspace.  A repository in the workspace is cloned afresh
+     * (see {@link #populate_workspace_from_clone(Launcher, File)}), and opening the new clone rewrites the
+     * files fossil manages; a shared repository is pulled and updated as usual.  Files fossil does not
+     * manage (build output, for instance) are left in place either way.
+     */
+    private boolean fossil_clean_workspace(Launcher launcher, File workspace) {
+        listener.getLogger().println(isSharedRepository()
+                ? "info: Clean build: updating from the shared repository; files fossil does not manage are kept."
+                : "info: Clean build: cloning the repository afresh; files fossil does not manage are kept.");
+        return true;
+    }
+
+    /**
+     * Populate the workspace with a pull+update of the existing repository.
+     *
+     * @param launcher used to execute the Fossil command.
+     * @param workspace target for the command
+     * @return true if successful
+     * @throws InterruptedException
+     */
+    private boolean populate_workspace_from_pull(Launcher launcher, File workspace)
+            throws InterruptedException, IOException {
+        return true
+                && (isCheckoutOpen(workspace) || fossil_open(launcher, workspace, null, false)) // make sure it is open
+                && (bundle == null || fossil_import_bundle(launcher, workspace))
+                && (hasPinnedCheckin(launcher, workspace) || fossil_pull(launcher, workspace))
+                && fossil_update(launcher, workspace) // update files with pulled changes in repo.
+                && (keepOpen || fossil_close(launcher, workspace));
+    }
+
+    /**
+     * Populate the workspace with a fresh clone.
+     *
+     * When cloning, we remove the existing repo because the fossil clone will complain otherwise.
+     * The fresh checkout is then updated to the build tag, as after a pull, so that a first or clean build
+     * checks out the same checkin as an incremental one.
+     *
+     * @param launcher used to execute the Fossil command.
+     * @param workspace target for the command
+     * @return true if successful
+     * @throws InterruptedException
+     */
+    private boolean populate_workspace_from_clone(Launcher launcher, File workspace)
+            throws InterruptedException, IOException {
+        return true
+                && fossil_delete_repository(workspace)
+                && fossil_forget_checkout(workspace)
+                && fossil_clone(launcher, workspace)
+                && fossil_settings("autosync", "off", launcher, workspace)
+                && (bundle == null || fossil_import_bundle(launcher, workspace))
+                && (snapshotBudget > 0 ? fossil_open_snapshot(launcher, workspace) : fossil_open(launcher, workspace, null, false))
+                && fossil_update(launcher, workspace) // open picks the default checkin, not the build tag.
+                && (keepOpen || fossil_close(launcher, workspace));
+    }
+
+    /**
+     * Open the repository.
+     *
+     * @param version the checkin to open, or null for the default
+     * @param keep true if the workspace already has the files of the checkin
+     */
+    private boolean fossil_open(Launcher launcher, File workspace, String version, boolean keep) throws InterruptedException, IOException {
+        File repo = repository(workspace);
+
+        if (!repo.exists()) {
+            listener.fatalError("fossil cannot open a missing repository (" + repo.getPath() + ")");
+            return false;
+        }
+
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "open");
+        args.add(localRepository);
+        if (version != null) {
+            args.add(version);
+        }
+        if (keep || preserveTimestamps) {
+            args.add("--keep");   // write nothing; fossil_restore_changed() fixes what differs.
+        } else if (setMtime()) {
+            args.add("--setmtime");
+        }
+
+        OutputStream out = console("open");
+        boolean ok = false;
+        try {
+            ok = fossil(launcher, workspace, args, out) == 0;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "fossil open failed", e);
+        }
+        report(out, ok);
+        if (!ok) {
+            listener.fatalError("Failed to open repository '" + localRepository);
+            return false;
+        }
+        return keep || !preserveTimestamps || fossil_restore_changed(launcher, workspace);
+    }
+
+    /**
+     * Open a fresh clone at the build tag, copying the files from the snapshot cache if it has the checkin,
+     * and adding them to the cache if not.
+     */
+    private boolean fossil_open_snapshot(Launcher launcher, File workspace) throws InterruptedException, IOException {
+        String hash = resolveCheckin(launcher, workspace);
+        if (hash == null) {
+            return fossil_open(launcher, workspace, null, false);
+        }
+        FossilSnapshotCache cache = new FossilSnapshotCache(FossilSnapshotCache.defaultRoot(workspace), snapshotBudget);
+        int restored = -1;
+        try {
+            restored = cache.restore(hash, workspace);
+        } catch (IOException e) {
+            listener.error("Failed to restore checkin " + hash + " from the snapshot cache: " + e.getMessage());
+        }
+        if (restored >= 0) {
+            listener.getLogger().println("info: restored " + restored + " files of checkin " + hash + " from the snapshot cache");
+            return fossil_open(launcher, workspace, hash, true);
+        }
+        if (!fossil_open(launcher, workspace, hash, false)) {
+            return false;
+        }
+        List<String> files = managedFiles(launcher, workspace);
+        if (files != null) {
+            try {
+                cache.store(hash, workspace, files);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to add checkin " + hash + " to the snapshot cache", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the full hash of the checkin the build tag names in the repository, or null if unknown
+     */
+    private String resolveCheckin(Launcher launcher, File workspace) throws InterruptedException {
+        try {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(fossilExecutable, "info", "latest".equals(buildTag) ? "tip" : buildTag);
+            args.add("-R", localRepository);
+            if (fossil(launcher, workspace, args, stdout, new ByteArrayOutputStream()) != 0) {
+                return null;
+            }
+            FossilInfo info = FossilInfo.parse(stdout.toString("UTF-8"));
+            String value = info.get("hash") != null ? info.get("hash") : info.get("uuid");
+            String hash = value == null ? "" : value.trim().split("\\s+")[0];
+            return hash.length() >= 40 && isCheckinHash(hash) ? hash : null;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to resolve " + buildTag, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the files of the open checkin, relative to the workspace, or null if they could not be listed
+     */
+    private List<String> managedFiles(Launcher launcher, File workspace) throws InterruptedException {
+        try {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(fossilExecutable, "ls");
+            if (fossil(launcher, workspace, args, stdout, new ByteArrayOutputStream()) != 0) {
+                return null;
+            }
+            List<String> files = new ArrayList<String>();
+            BufferedReader in = new BufferedReader(new StringReader(stdout.toString("UTF-8")));
+            String s;
+            while ((s = in.readLine()) != null) {
+                if (s.length() > 0) {
+                    files.add(s);
+                }
+            }
+            return files;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "fossil ls failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * After <tt>open --keep</tt>, rewrite only the files whose content differs from the opened checkin
+     * (or that are missing).  Unchanged files keep their modification times, so make and friends do not
+     * rebuild them.
+     */
+    private boolean fossil_restore_changed(Launcher launcher, File workspace) throws InterruptedException {
+        List<String> changed = new ArrayList<String>();
+        try {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(fossilExecutable, "changes");
+            if (fossil(launcher, workspace, args, stdout, new ByteArrayOutputStream()) != 0) {
+                listener.fatalError("Failed to list changed files in workspace = '" + workspace + "'");
+                return false;
+            }
+            BufferedReader in = new BufferedReader(new StringReader(stdout.toString("UTF-8")));
+            String s;
+            while ((s = in.readLine()) != null) {
+                String[] f = s.trim().split("\\s+", 2);
+                if (f.length == 2 && !f[0].equals("ADDED") && !f[0].equals("DELETED") && !f[0].equals("EXTRA")) {
+                    changed.add(f[1]);  // EDITED, MISSING, ...
+                }
+            }
+        } catch (IOException e) {
+            listener.fatalError("Failed to list changed files in workspace = '" + workspace + "'");
+            return false;
+        }
+
+        listener.getLogger().println("info: " + changed.size() + " file(s) differ from the repository; leaving the others untouched");
+        for (int i = 0; i < changed.size(); i += REVERT_BATCH) {
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(fossilExecutable, "revert");
+            for (String path : changed.subList(i, Math.min(changed.size(), i + REVERT_BATCH))) {
+                args.add(path);
+            }
+            OutputStream out = console("revert");
+            boolean ok = false;
+            try {
+                ok = fossil(launcher, workspace, args, out) == 0;
+            } catch (IOException e) {
+                logger.log(Level.FINE, "fossil revert failed", e);
+            }
+            report(out, ok);
+            if (!ok) {
+                listener.fatalError("Failed to restore changed files in workspace = '" + workspace + "'");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if files written by fossil should get the time of the checkin that last changed them
+     *         (<tt>-Dhudson.plugins.fossil.FossilCheckoutTask.setMtime=true</tt>, fossil 2.9 or later).
+     */
+    private boolean setMtime() {
+        return Boolean.getBoolean(FossilCheckoutTask.class.getName() + ".setMtime") && client != null && client.canSetMtime();
+    }
+
+    /**
+     * Delete the repository file from the workspace.
+     *
+     * @param workspace
+     * @return true (a missing repository is not an error)
+     */
+    private boolean fossil_delete_repository(File workspace) {
+        File repo = repository(workspace);
+
+        if (repo.exists() && !repo.delete()) {
+            listener.error("Unable to delete repository (" + repo.getPath() + ")");
+        }
+        return true;
+    }
+
+    /**
+     * Remove a checkout database left open by an earlier build; it refers to the repository being replaced.
+     *
+     * @param workspace
+     * @return true (a missing checkout database is not an error)
+     */
+    private boolean fossil_forget_checkout(File workspace) {
+        File db = new File(workspace, CHECKOUT_DB);
+
+        if (db.exists() && !db.delete()) {
+            listener.error("Unable to delete checkout database (" + db.getPath() + ")");
+        }
+        return true;
+    }
+
+    private boolean fossil_update(Launcher launcher, File workspace) throws InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "update");
+        args.add(buildTag);
+        if (setMtime()) {
+            args.add("--setmtime");
+        }
+
+        OutputStream out = console("update");
+        boolean ok = false;
+        try {
+            ok = fossil(launcher, workspace, args, out) == 0;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "fossil update failed", e);
+        }
+        report(out, ok);
+        if (!ok) {
+            listener.fatalError("Failed to " + args.toStringWithQuote() + " workspace = '" + workspace + "'");
+        }
+        return ok;
+    }
+
+    /**
+     * Import the upstream bundle into the repository, and delete it from the workspace.  A bundle that cannot
+     * be imported is not an error: the pull that follows fetches the checkins instead (after a clone, the
+     * repository has them already).
+     *
+     * @return true
+     */
+    private boolean fossil_import_bundle(Launcher launcher, File workspace) throws InterruptedException {
+        File file = new File(workspace, bundle);
+        if (!client.canBundle()) {
+            listener.getLogger().println("info: " + client + " cannot import bundles; pulling instead.");
+            discardBundle(workspace);
+            return true;
+        }
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "bundle", "import", file.getPath());
+        args.add("--publish");   // as if pulled, not private.
+        args.add("-R", localRepository);
+
+        OutputStream out = console("bundle import");
+        boolean ok = false;
+        try {
+            ok = fossil(launcher, workspace, args, out) == 0;
+        } catch (IOException e) {
+            logger.log(Level.FINE, "fossil bundle import failed", e);
+        }
+        report(out, ok);
+        if (!ok) {
+            listener.error("Failed to import the upstream bundle; pulling instead");
+        }
+        discardBundle(workspace);
+        return true;
+    }
+
+    /**
+     * Delete the upstream bundle from the workspace, so that it is neither archived nor exported again.
+     */
+    private void discardBundle(File workspace) {
+        File file = new File(workspace, bundle);
+        if (file.exists() && !file.delete()) {
+            logger.log(Level.FINE, "Cannot delete {0}", file);
+        }
+    }
+
+    /**
+     * A build pinned to a checkin hash needs nothing from the server if the repository already has that
+     * checkin (e.g. a rebuild, or a bisect over old revisions): the update can go straight to it.  Branch
+     * and tag names move, so they are always pulled.
+     *
+     * @return true if buildTag names a checkin that the local repository has, unambiguously.
+     */
+    private boolean hasPinnedCheckin(Launcher launcher, File workspace) throws InterruptedException {
+        if (!isCheckinHash(buildTag) || client == null || !client.canQueryRepository()) {
+            return false;
+        }
+        String prefix = buildTag.toLowerCase(Locale.ENGLISH);
+        String query = "SELECT (SELECT count(*) FROM blob b JOIN event e ON e.objid = b.rid"
+                + " WHERE e.type = 'ci' AND b.uuid GLOB '" + prefix + "*')"
+                + " || ',' || (SELECT count(*) FROM tag WHERE tagname = 'sym-" + buildTag + "');\n";
+        try {
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(fossilExecutable, "sql", "-R", localRepository);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int ret = fossil(launcher, workspace, args, new ByteArrayInputStream(query.getBytes("UTF-8")), out, stderr);
+            if (ret != 0 || stderr.size() > 0) {
+                logger.log(Level.FINE, "fossil sql returned {0}: {1}", new Object[]{ret, stderr.toString()});
+                return false;
+            }
+            if (!out.toString("UTF-8").trim().equals("1,0")) {
+                return false;  // missing, ambiguous, or also the name of a branch or tag.
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to look up checkin " + buildTag, e);
+            return false;
+        }
+        listener.getLogger().println("info: checkin " + buildTag + " is already in the local repository; not pulling.");
+        return true;
+    }
+
+    /**
+     * @param tag a build tag
+     * @return true if it looks like a (possibly abbreviated) checkin hash
+     */
+    static boolean isCheckinHash(String tag) {
+        if (tag == null || tag.length() < 4 || tag.length() > 64) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (Character.digit(tag.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pull from the server, retrying with backoff since this is network-bound.
+     */
+    private boolean fossil_pull(Launcher launcher, File workspace) throws InterruptedException, IOException {
+        File repo = repository(workspace);
+
+        if (!repo.exists()) {
+            listener.error("fossil cannot open a missing repository (" + repo.getPath() + ")");
+            return false;
+        }
+
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "pull");
+        args.add(authenticatedServerUrl);
+        args.add("--repository", localRepository);
+        args.add("--once"); // dont remember the URL (fossil normally does.)
+
+        for (int attempt = 1;; attempt++) {
+            OutputStream out = console("pull");
+            try {
+                // remember not to log the username and password...
+                if (fossil(launcher, workspace, args, out) == 0) {
+                    report(out, true);
+                    return true;
+                }
+                report(out, false);
+                listener.error("Failed to pull from server '" + serverUrl + "' into repository '" + localRepository + "'");
+            } catch (IOException e) {
+                report(out, false);
+                listener.error("IOException: Failed to pull from server '" + serverUrl + "' into repository '" + localRepository + "'");
+            }
+            if (attempt >= FossilProcess.attempts()) {
+                listener.fatalError("Giving up on pull after " + attempt + " attempts");
+                return false;
+            }
+            FossilProcess.backoff(attempt, listener);
+        }
+    }
+
+    /**
+     * Clone from the server, retrying with backoff since this is network-bound.
+     * A partial repository left behind by a failed attempt is removed before the next one.
+     */
+    private boolean fossil_clone(Launcher launcher, File workspace) throws InterruptedException, IOException {
+        File repo = repository(workspace);
+
+        if (repo.exists()) {
+            listener.fatalError("fossil cannot clone over an existing repository (" + repo.getPath() + ")");
+            return false;
+        }
+
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "clone");
+        args.add(authenticatedServerUrl);
+        args.add(localRepository);
+
+        for (int attempt = 1;; attempt++) {
+            OutputStream out = console("clone");
+            try {
+                if (fossil(launcher, workspace, args, out) == 0) {
+                    report(out, true);
+                    return true;
+                }
+                report(out, false);
+                listener.error("Failed to clone from server '" + serverUrl + "' into repository '" + localRepository + "'");
+            } catch (IOException e) {
+                report(out, false);
+                listener.error("Failed to clone from server '" + serverUrl + "' into repository '" + localRepository + "'");
+            }
+            fossil_delete_repository(workspace);
+            if (attempt >= FossilProcess.attempts()) {
+                listener.fatalError("Giving up on clone after " + attempt + " attempts");
+                return false;
+            }
+            FossilProcess.backoff(attempt, listener);
+        }
+    }
+
+    private boolean fossil_settings(String setting, String value, Launcher launcher, File workspace)
+            throws InterruptedException, IOException {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "settings");
+        args.add(setting);
+        args.add(value);
+
+        try {
+            if (fossil(launcher, workspace, args, listener.getLogger()) != 0) {
+                listener.error("Failed to " + args.toStringWithQuote() + " workspace = '" + workspace + "'");
+                return false;
+            }
+        } catch (IOException e) {
+            listener.error("Failed to " + args.toStringWithQuote());
+            return false;
+        }
+        listener.getLogger().println("successfully ran single command:settings");
+        return true;
+    }
+
+    private boolean fossil_close(Launcher launcher, File workspace) throws InterruptedException, IOException {
+        File repo = repository(workspace);
+
+        if (!repo.exists()) {
+            listener.error("fossil cannot close a missing repository (" + repo.getPath() + ")");
+            return false;
+        }
+
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "close");
+        args.add(localRepository); // local localRepository name
+        args.add("--force");
+
+        try {
+            if (fossil(launcher, workspace, args, listener.getLogger()) != 0) {
+                listener.error("Failed to " + args.toStringWithQuote() + " workspace = '" + workspace + "'");
+                return false;
+            }
+        } catch (IOException e) {
+            listener.error("Failed to " + args.toStringWithQuote());
+            return false;
+        }
+        listener.getLogger().println("successfully ran single command:close");
+        return true;
+    }
+
+    /**
+     * Determine which checkin the repository in the workspace is at.
+     *
+     * @param launcher
+     * @param workspace
+     * @return a Fossil checkin hash, or null if it could not be determined.
+     * @throws InterruptedException
+     */
+    private String getRevision(Launcher launcher, File workspace) throws InterruptedException {
+        if (!repository(workspace).exists()) {
+            logger.warning("getRevision() - no repo at location.");
+            return null;
+        }
+
+        String checkin = null;
+        revisionDate = null;
+        try {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            if (isCheckoutOpen(workspace)) {
+                args.add(fossilExecutable, "info");
+            } else {
+                args.add(fossilExecutable, "open", localRepository, "--keep");   // fast way to open a repo.
+            }
+
+            final int ret = fossil(launcher, workspace, args, stdout, stderr);
+            final String info_output = args.toStringWithQuote() + " returned " + ret + ". Command output: \"" + stdout.toString() + "\" stderr: \"" + stderr.toString() + "\"";
+            if (ret != 0) {
+                logger.severe(info_output);
+            } else {
+                FossilInfo info = FossilInfo.parse(stdout.toString());
+                checkin = info.getCheckout();
+                revisionDate = info.getCheckoutDate();
+                if (checkin == null) {
+                    logger.log(Level.WARNING, "Unable to determine hash for repository '{0}'", localRepository);
+                }
+            }
+
+            if (raw == null) {
+                listener.getLogger().printf("info result: %s\n", info_output);
+            } else {
+                raw.write((info_output + "\n").getBytes("UTF-8"));
+                listener.getLogger().println("info: workspace at checkin " + checkin);
+            }
+
+            if (!keepOpen) {
+                fossil_close(launcher, workspace);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to get revision of repository: ", e);
+        }
+        return checkin;
+    }
+
+    /**
+     * Produce the log of changes from oldRevision to newRevision in the {@link FossilChangeLogFormat}, by
+     * querying the repository with <tt>fossil sql</tt>.  The output goes straight into a gzip buffer.
+     *
+     * The checkins are those reachable from newRevision but not from oldRevision according to the
+     * {@link FossilCheckinGraph}, so switching branches lists only what the new branch brought in, and
+     * going back to an older checkin lists nothing.  Without the graph the checkins in between by time are
+     * listed, as the timeline does.
+     *
+     * @param launcher
+     * @param workspace
+     * @param oldRevId
+     * @param newRevId
+     * @return the gzip-compressed change log, or null if the query failed (use the timeline instead).
+     * @throws InterruptedException
+     */
+    private byte[] queryLogBetweenRevisions(Launcher launcher, File workspace, String oldRevId, String newRevId)
+            throws InterruptedException {
+        String query = FossilChangeLogFormat.query(oldRevId, newRevId);
+        synchronized (lockFor(repository(workspace))) {
+            FossilCheckinGraph graph = checkinGraph(launcher, workspace);
+            List<String> revIds = graph == null ? null : graph.between(oldRevId, newRevId);
+            if (revIds != null) {
+                query = FossilChangeLogFormat.query(revIds);
+            }
+        }
+
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "sql", "-R", localRepository);
+
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream out = new GZIPOutputStream(compressed);
+            out.write((FossilChangeLogFormat.HEADER + "\n").getBytes("UTF-8"));
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            InputStream sql = new ByteArrayInputStream(query.getBytes("UTF-8"));
+
+            int ret = fossil(launcher, workspace, args, sql, out, stderr);
+            out.close();
+            if (ret != 0 || stderr.size() > 0) {
+                logger.log(Level.WARNING, "fossil sql returned {0}: {1}", new Object[]{ret, stderr.toString()});
+                return null;
+            }
+            return compressed.toByteArray();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to query change log: ", e);
+            return null;
+        }
+    }
+
+    /**
+     * Produce the log of changes from oldRevision to newRevision.
+     *
+     * Fossil has the "timeline" command which will give you a summary of changes going back in time given a last
+     * revision but not between two revisions.  The timeline before the new revision is read as it is produced and
+     * cut off at the old revision's checkin line, at which point the fossil process is stopped.  Only the relevant
+     * entries are kept, and they are gzip-compressed before being shipped back to the master.
+     *
+     * @param launcher
+     * @param workspace
+     * @param oldRevId
+     * @param newRevId
+     * @return the gzip-compressed relevant part of the timeline, or null on failure.
+     * @throws InterruptedException
+     */
+    private byte[] getLogBetweenRevisions(Launcher launcher, File workspace, String oldRevId, String newRevId)
+            throws InterruptedException {
+        final String many_revisions = "2000000";
+
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(fossilExecutable, "timeline", "before", newRevId, "-n", many_revisions, "-t", "ci");
+
+        Proc proc = null;
+        FossilProcess.Watchdog dog = null;
+        try {
+            proc = launcher.launch().cmds(args).envs(env).readStdout().pwd(workspace).start();
+            dog = FossilProcess.watch(proc, "timeline");
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            Writer out = new OutputStreamWriter(new GZIPOutputStream(compressed), "UTF-8");
+            boolean found = copyTimelineUntil(new BufferedReader(new InputStreamReader(proc.getStdout(), "UTF-8")), out, oldRevId);
+            out.close();
+
+            if (found) {
+                proc.kill();  // the rest of the timeline is history we already have.
+            } else {
+                int ret = proc.join();
+                if (dog.isExpired()) {
+                    listener.error("fossil timeline timed out; no change log recorded");
+                    return null;
+                }
+                if (ret != 0) {
+                    logger.log(Level.WARNING, args.toStringWithQuote() + "returned {0}", ret);
+                    return null;
+                }
+            }
+            return compressed.toByteArray();
+        } catch (InterruptedException e) {
+            killQuietly(proc);
+            throw e;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to get timeline: ", e);
+            killQuietly(proc);
+            return null;
+        } finally {
+            if (dog != null) {
+                dog.cancel();
+            }
+        }
+    }
+
+    private static void killQuietly(Proc proc) throws InterruptedException {
+        if (proc != null) {
+            try {
+                proc.kill();
+            } catch (IOException ignored) {
+                // nothing more can be done.
+            }
+        }
+    }
+
+    /**
+     * Copy timeline lines from in to out up to (not including) the checkin line of the given revision.
+     *
+     * The "=== date ===" header is held back until an entry below it is copied, so that a cut at the first entry
+     * of a day does not leave an empty day behind.
+     *
+     * @param in a fossil timeline
+     * @param out receives the relevant part of the timeline
+     * @param stopRevId the revision where copying stops
+     * @return true if the stop revision was found
+     * @throws IOException
+     */
+    static boolean copyTimelineUntil(BufferedReader in, Writer out, String stopRevId) throws IOException {
+        String pendingDate = null;
+        String s;
+        while ((s = in.readLine()) != null) {
+            if (s.startsWith("===")) {
+                pendingDate = s;
+                continue;
+            }
+            if (isCheckinLineFor(s, stopRevId)) {
+                return true;
+            }
+            if (pendingDate != null) {
+                out.write(pendingDate);
+                out.write('\n');
+                pendingDate = null;
+            }
+            out.write(s);
+            out.write('\n');
+        }
+        return false;
+    }
+
+    /**
+     * A checkin line looks like "08:07:02 [68ea0f8d97] comment..." where the bracketed part is an
+     * abbreviation of the full hash.
+     */
+    private static boolean isCheckinLineFor(String s, String revId) {
+        if (s.length() < 12 || !Character.isDigit(s.charAt(0)) || s.charAt(9) != '[') {
+            return false;
+        }
+        int end = s.indexOf(']', 10);
+        return end > 10 && revId.startsWith(s.substring(10, end));
+    }
+
+    /**
+     * The checkout database fossil creates in the workspace on open.
+     */
+    private static final String CHECKOUT_DB = ".fslckout";
+
+    /**
+     * Name of the quiet mode side file in the build directory.
+     */
+    static final String RAW_LOG = "fossil-output.log.gz";
+
+    /**
+     * Files per <tt>fossil revert</tt> command line.
+     */
+    private static final int REVERT_BATCH = 200;
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = Logger.getLogger(FossilCheckoutTask.class.getName());
+}
@@ -1,20 +1,33 @@
-
 package hudson.plugins.fossil;
 
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Represents the version of the Fossil command line client being used.
  * Contains the output from the "fossil version" command.
- * 
+ *
+ * The version tells which of the cheaper command forms the client supports.  Detection runs
+ * <tt>fossil version</tt> once per executable on each node; the result is cached in the node's JVM
+ * and keyed by the executable's path and modification time, so upgrading fossil is noticed without
+ * asking every build.
+ *
  * @author perrella
  */
-public class FossilClientInfo {
+public class FossilClientInfo implements Serializable {
     private String version;
     private String checkin;
     private String date;
-    
+
+    private static final Pattern VERSION = Pattern.compile("version\\s+(\\d+)\\.(\\d+)\\S*\\s+\\[([0-9a-fA-F]+)\\]\\s+(.*)");
+    private static final Map<String, FossilClientInfo> detected = new ConcurrentHashMap<String, FossilClientInfo>();
+
     /**
      * Create a Fossil Client Info
-     * 
+     *
      * @param version the version of the Fossil client program
      * @param checkin the Fossil checkin hash for the client program
      * @param date the date of the Fossil client program
@@ -26,6 +39,81 @@ public class FossilClientInfo {
         this.date = date;
     }
 
+    /**
+     * Parse the output of <tt>fossil version</tt>, e.g.
+     * "This is fossil version 2.10 [9a1e8f0bce] 2019-10-04 14:05:48 UTC".
+     *
+     * @param output the command output
+     * @return the client info; the version is "0.0" if the output was not recognized.
+     */
+    public static FossilClientInfo parse(String output) {
+        Matcher m = VERSION.matcher(output);
+        return m.find()
+                ? new FossilClientInfo(m.group(1) + "." + m.group(2), m.group(3), m.group(4).trim())
+                : new FossilClientInfo("0.0", "", "");
+    }
+
+    /**
+     * @param key the executable's path and modification time
+     * @return the client info detected earlier on this node, or null
+     */
+    static FossilClientInfo getDetected(String key) {
+        return detected.get(key);
+    }
+
+    /**
+     * Remember the client info for an executable on this node.
+     *
+     * @param key the executable's path and modification time
+     * @param info the detected client info
+     */
+    static void setDetected(String key, FossilClientInfo info) {
+        detected.put(key, info);
+    }
+
+    /**
+     * @return the version as a comparable number, e.g. 2.10 is 210 and 1.23 is 123 (0 if unknown)
+     */
+    public int getVersionNumber() {
+        try {
+            int dot = version.indexOf('.');
+            return Integer.parseInt(version.substring(0, dot)) * 100 + Integer.parseInt(version.substring(dot + 1));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if the checkout database (.fslckout) can be left in the workspace between builds, so an
+     *         existing checkout needs neither <tt>open</tt> nor <tt>close</tt>.
+     */
+    public boolean canKeepCheckoutOpen() {
+        return getVersionNumber() >= 120;
+    }
+
+    /**
+     * @return true if <tt>open</tt>, <tt>checkout</tt> and <tt>update</tt> accept <tt>--setmtime</tt>.
+     */
+    public boolean canSetMtime() {
+        return getVersionNumber() >= 209;
+    }
+
+    /**
+     * @return true if the client has <tt>fossil bundle</tt> (export and import of checkins, see
+     *         {@link FossilBundlePublisher}).
+     */
+    public boolean canBundle() {
+        return getVersionNumber() >= 130;
+    }
+
+    /**
+     * @return true if <tt>fossil sql</tt> bundles an SQLite recent enough for the change log query
+     *         (see {@link FossilChangeLogFormat#QUERY}).
+     */
+    public boolean canQueryRepository() {
+        return getVersionNumber() >= 128;
+    }
+
     /**
      * @return the version
      */
@@ -67,4 +155,15 @@ public class FossilClientInfo {
     public void setDate(String date) {
         this.date = date;
     }
+
+    @Override
+    public String toString() {
+        return "fossil " + version + " [" + checkin + "]"
+                + (canSetMtime() ? " setmtime" : "")
+                + (canQueryRepository() ? " sql" : "")
+                + (canBundle() ? " bundle" : "")
+                + (canKeepCheckoutOpen() ? " keep-open" : "");
+    }
+
+    private static final long serialVersionUID = 1L;
 }
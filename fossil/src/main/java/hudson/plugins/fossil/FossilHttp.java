@@ -0,0 +1,440 @@
+package hudson.plugins.fossil;
+
+import hudson.util.Scrambler;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The HTTP requests made to Fossil servers while polling (RSS feed and JSON API).
+ *
+ * A bare <tt>URL.openStream()</tt> has no timeouts, so a stalled server could hold every polling thread
+ * of the master.  Requests made here:
+ * <ul>
+ * <li>time out after {@link #CONNECT_TIMEOUT} / {@link #READ_TIMEOUT} seconds;</li>
+ * <li>read every response (error responses included) to the end and close it, so the JDK's keep-alive
+ *     cache can reuse the connection for the next poll of the same server;</li>
+ * <li>use the login session of the URL's credentials (see {@link FossilSession});</li>
+ * <li>are limited to {@link #MAX_PER_HOST} at a time per server;</li>
+ * <li>go through a {@link CircuitBreaker} per server, which stops polling a server that keeps failing
+ *     and lets a single trial request through once the back-off has passed.</li>
+ * </ul>
+ *
+ * The limits can be changed with system properties on the master, e.g.
+ * <tt>-Dhudson.plugins.fossil.FossilHttp.readTimeout=60</tt>.
+ *
+ * @author Ron Perrella
+ */
+final class FossilHttp {
+
+    private static final String PREFIX = FossilHttp.class.getName();
+
+    /**
+     * Seconds to wait for a connection.
+     */
+    static final int CONNECT_TIMEOUT = Integer.getInteger(PREFIX + ".connectTimeout", 10);
+
+    /**
+     * Seconds to wait for data (also the longest a request waits for its turn).
+     */
+    static final int READ_TIMEOUT = Integer.getInteger(PREFIX + ".readTimeout", 30);
+
+    /**
+     * Requests in flight per server.
+     */
+    static final int MAX_PER_HOST = Math.max(1, Integer.getInteger(PREFIX + ".maxPerHost", 4));
+
+    /**
+     * Consecutive failures that open a server's circuit.
+     */
+    static final int FAILURE_THRESHOLD = Math.max(1, Integer.getInteger(PREFIX + ".failureThreshold", 5));
+
+    private static final Map<String, Semaphore> slots = new ConcurrentHashMap<String, Semaphore>();
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private FossilHttp() {
+    }
+
+    /**
+     * Fetch a page of a repository.
+     *
+     * If the repository URL has credentials, the request carries the login cookie of the
+     * {@link FossilSession} for them (logging in first if needed), or, if the server refuses the login,
+     * a Basic <tt>Authorization</tt> header.  A request the server answers with its login page is made
+     * once more with a fresh session.
+     *
+     * @param repositoryUrl the repository URL, possibly with <tt>user:password@</tt>
+     * @param path the page, e.g. <tt>/timeline.rss</tt>
+     * @return the response body
+     * @throws FileNotFoundException if the server answered 404
+     * @throws IOException if the request failed, timed out, or the server's circuit is open
+     */
+    static String get(String repositoryUrl, String path) throws IOException {
+        String repository = withoutCredentials(repositoryUrl);
+        URL u = new URL(repository + path);
+        FossilSession session = sessionFor(repositoryUrl);
+        Response r = request(u, session, null, false);
+        if (r.loginRequired && session != null) {
+            session.invalidate();
+            r = request(u, session, null, false);
+        }
+
+        if (r.status == HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new FileNotFoundException(u.getPath());
+        }
+        if (r.status >= 400) {
+            throw new IOException("HTTP " + r.status + " from " + hostOf(u));
+        }
+        return r.body;
+    }
+
+    /**
+     * Make the next request to a repository log in again, e.g. because the JSON API said the session has
+     * no access.
+     *
+     * @param repositoryUrl the repository URL, possibly with <tt>user:password@</tt>
+     * @throws IOException if the URL is malformed
+     */
+    static void invalidateSession(String repositoryUrl) throws IOException {
+        FossilSession session = sessionFor(repositoryUrl);
+        if (session != null) {
+            session.invalidate();
+        }
+    }
+
+    /**
+     * @return the session for the credentials of the URL, which {@link FossilScm#getAuthenticatedServerUrl()}
+     *         percent-encoded; null if it has none
+     */
+    private static FossilSession sessionFor(String repositoryUrl) throws IOException {
+        String auth = new URL(repositoryUrl).getUserInfo();
+        if (auth == null || auth.length() <= 1) {
+            return null;
+        }
+        int colon = auth.indexOf(':');
+        String user = decode(colon < 0 ? auth : auth.substring(0, colon));
+        String password = colon < 0 ? "" : decode(auth.substring(colon + 1));
+        return FossilSession.get(withoutCredentials(repositoryUrl), user, password);
+    }
+
+    private static String withoutCredentials(String repositoryUrl) throws IOException {
+        URL u = new URL(repositoryUrl);
+        String s = new URL(u.getProtocol(), u.getHost(), u.getPort(), u.getFile()).toString();
+        return s.endsWith("/") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /**
+     * Log in to a repository.
+     *
+     * @param repository the repository URL, without credentials
+     * @param user the user name
+     * @param password the password
+     * @return the <tt>Set-Cookie</tt> headers of the response (none if the login was refused)
+     * @throws IOException
+     */
+    static List<String> login(String repository, String user, String password) throws IOException {
+        String form = "u=" + URLEncoder.encode(user, "UTF-8") + "&p=" + URLEncoder.encode(password, "UTF-8") + "&in=1";
+        return request(new URL(repository + "/login"), null, form, true).cookies;
+    }
+
+    /**
+     * @param repositoryUrl a repository URL (with or without credentials)
+     * @return <tt>protocol://host:port</tt>
+     * @throws IOException if the URL is malformed
+     */
+    static String hostOf(String repositoryUrl) throws IOException {
+        return hostOf(new URL(repositoryUrl));
+    }
+
+    private static String hostOf(URL u) {
+        return u.getProtocol() + "://" + u.getHost() + ":" + (u.getPort() < 0 ? u.getDefaultPort() : u.getPort());
+    }
+
+    /**
+     * Make one request, subject to the server's circuit breaker and request limit.
+     *
+     * @param u the URL, without credentials
+     * @param session the login session to use, or null
+     * @param form the form to POST, or null to GET
+     * @param cookies true to collect the <tt>Set-Cookie</tt> headers
+     */
+    private static Response request(URL u, FossilSession session, String form, boolean cookies) throws IOException {
+        String host = hostOf(u);
+        // log in first: the login is a request of its own.
+        String cookie = session == null ? null : session.getCookie();
+        CircuitBreaker breaker = breakerFor(host);
+        if (!breaker.allowRequest()) {
+            throw new IOException("Not polling " + host + " for now: it keeps failing");
+        }
+
+        Semaphore slot = slotFor(host);
+        try {
+            if (!slot.tryAcquire(READ_TIMEOUT, TimeUnit.SECONDS)) {
+                breaker.cancel();
+                throw new IOException("Too many requests in flight to " + host);
+            }
+        } catch (InterruptedException e) {
+            breaker.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to poll " + host);
+        }
+
+        Response r = new Response();
+        try {
+            HttpURLConnection con = (HttpURLConnection) u.openConnection();
+            con.setConnectTimeout(CONNECT_TIMEOUT * 1000);
+            con.setReadTimeout(READ_TIMEOUT * 1000);
+            con.setUseCaches(false);
+            if (cookie != null) {
+                con.setRequestProperty("Cookie", cookie);
+            } else if (session != null) {
+                con.setRequestProperty("Authorization", "Basic " + Scrambler.scramble(session.getCredentials()));
+            }
+            if (form != null) {
+                con.setInstanceFollowRedirects(false);  // the login answers with a redirect that sets the cookie.
+                con.setDoOutput(true);
+                con.setRequestMethod("POST");
+                con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                OutputStream out = con.getOutputStream();
+                try {
+                    out.write(form.getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+            }
+            r.status = con.getResponseCode();
+            r.body = read(r.status >= 400 ? con.getErrorStream() : con.getInputStream());
+            r.loginRequired = r.status == HttpURLConnection.HTTP_UNAUTHORIZED || r.status == HttpURLConnection.HTTP_FORBIDDEN
+                    || (form == null && con.getURL().getPath().endsWith("/login"));  // redirected to the login page.
+            if (cookies) {
+                for (Map.Entry<String, List<String>> h : con.getHeaderFields().entrySet()) {
+                    if ("Set-Cookie".equalsIgnoreCase(h.getKey())) {
+                        r.cookies.addAll(h.getValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            breaker.failure();
+            throw e;
+        } finally {
+            slot.release();
+        }
+
+        if (r.status >= 500) {
+            breaker.failure();
+            throw new IOException("HTTP " + r.status + " from " + host);
+        }
+        breaker.success();  // the server is up, even if it has no such page.
+        return r;
+    }
+
+    private static final class Response {
+        int status;
+        String body;
+        boolean loginRequired;
+        final List<String> cookies = new ArrayList<String>();
+    }
+
+    /**
+     * Read a response to the end (which lets the connection be reused) and close it.
+     */
+    private static String read(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return s;
+        }
+    }
+
+    private static Semaphore slotFor(String host) {
+        synchronized (slots) {
+            Semaphore s = slots.get(host);
+            if (s == null) {
+                s = new Semaphore(MAX_PER_HOST, true);
+                slots.put(host, s);
+            }
+            return s;
+        }
+    }
+
+    private static CircuitBreaker breakerFor(String host) {
+        synchronized (breakers) {
+            CircuitBreaker b = breakers.get(host);
+            if (b == null) {
+                b = new CircuitBreaker(host);
+                breakers.put(host, b);
+            }
+            return b;
+        }
+    }
+
+    /**
+     * @return the circuit breaker of every server polled so far, by <tt>protocol://host:port</tt>
+     */
+    static Map<String, CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(new TreeMap<String, CircuitBreaker>(breakers));
+    }
+
+    /**
+     * Stops requests to a server after {@link FossilHttp#FAILURE_THRESHOLD} consecutive failures.
+     *
+     * The circuit then stays open for a back-off period (30 seconds, doubling each time the server fails
+     * again, up to 30 minutes), after which it is half-open: one trial request goes through, and closes
+     * the circuit if it succeeds or opens it again if it fails.  The counters are kept for monitoring.
+     */
+    static final class CircuitBreaker {
+
+        enum State { CLOSED, OPEN, HALF_OPEN }
+
+        private static final long MIN_BACKOFF = 30 * 1000L;
+        private static final long MAX_BACKOFF = 30 * 60 * 1000L;
+
+        private final String host;
+        private State state = State.CLOSED;
+        private int consecutiveFailures = 0;
+        private long backoff = MIN_BACKOFF;
+        private long openUntil = 0;
+        private boolean trialInFlight = false;
+        private long requests, failures, rejected, opened, halfOpened, closed;
+
+        CircuitBreaker(String host) {
+            this.host = host;
+        }
+
+        /**
+         * @return true if a request may be made now.
+         */
+        synchronized boolean allowRequest() {
+            return allowRequest(System.currentTimeMillis());
+        }
+
+        synchronized boolean allowRequest(long now) {
+            if (state == State.OPEN && now >= openUntil) {
+                state = State.HALF_OPEN;
+                halfOpened++;
+                logger.log(Level.INFO, "Trying Fossil server {0} again", host);
+            }
+            if (state == State.OPEN || (state == State.HALF_OPEN && trialInFlight)) {
+                rejected++;
+                return false;
+            }
+            trialInFlight = state == State.HALF_OPEN;
+            requests++;
+            return true;
+        }
+
+        synchronized void success() {
+            consecutiveFailures = 0;
+            trialInFlight = false;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                backoff = MIN_BACKOFF;
+                closed++;
+                logger.log(Level.INFO, "Fossil server {0} is answering again", host);
+            }
+        }
+
+        synchronized void failure() {
+            failure(System.currentTimeMillis());
+        }
+
+        synchronized void failure(long now) {
+            failures++;
+            consecutiveFailures++;
+            trialInFlight = false;
+            if (state == State.HALF_OPEN) {
+                backoff = Math.min(MAX_BACKOFF, backoff * 2);
+                open(now);
+            } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+                open(now);
+            }
+        }
+
+        /**
+         * A request that was allowed but never made.
+         */
+        synchronized void cancel() {
+            trialInFlight = false;
+        }
+
+        private void open(long now) {
+            state = State.OPEN;
+            openUntil = now + backoff;
+            opened++;
+            logger.log(Level.WARNING, "Fossil server {0} keeps failing; not polling it for {1}s", new Object[]{host, backoff / 1000});
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        synchronized long getRequests() {
+            return requests;
+        }
+
+        synchronized long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return how many requests were refused because the circuit was open
+         */
+        synchronized long getRejected() {
+            return rejected;
+        }
+
+        synchronized long getOpened() {
+            return opened;
+        }
+
+        synchronized long getHalfOpened() {
+            return halfOpened;
+        }
+
+        synchronized long getClosed() {
+            return closed;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return host + " " + state + " requests=" + requests + " failures=" + failures + " rejected=" + rejected
+                    + " opened=" + opened + " halfOpened=" + halfOpened + " closed=" + closed;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilHttp.class.getName());
+}
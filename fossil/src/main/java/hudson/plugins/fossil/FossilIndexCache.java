@@ -0,0 +1,70 @@
+package hudson.plugins.fossil;
+
+import hudson.model.AbstractProject;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The per-job indexes of one kind ({@link FossilRevisionIndex}, {@link FossilSearchIndex}), each loaded on
+ * first use.
+ *
+ * Loading a job's index may parse the change log of every build it has, so it must not hold a lock that
+ * other jobs need.  Each job gets a future: the first caller loads the index, later callers for the same
+ * job wait for it, and callers for other jobs do not wait at all.
+ *
+ * @param <T> the kind of index
+ * @author Ron Perrella
+ */
+abstract class FossilIndexCache<T> {
+
+    private final ConcurrentMap<String, FutureTask<T>> indexes = new ConcurrentHashMap<String, FutureTask<T>>();
+
+    /**
+     * Load a job's index and bring it up to date.  Runs once per job, without any global lock held.
+     *
+     * @param project a job
+     * @return the index
+     */
+    protected abstract T load(AbstractProject<?, ?> project);
+
+    /**
+     * @param project a job
+     * @return the job's index, loading it first if this is the first use
+     */
+    T get(final AbstractProject<?, ?> project) {
+        String key = project.getFullName();
+        FutureTask<T> future = indexes.get(key);
+        if (future == null) {
+            FutureTask<T> created = new FutureTask<T>(new Callable<T>() {
+                public T call() {
+                    return load(project);
+                }
+            });
+            future = indexes.putIfAbsent(key, created);
+            if (future == null) {
+                future = created;
+                created.run();
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;  // keep waiting: another thread is loading the index.
+                }
+            }
+        } catch (ExecutionException e) {
+            indexes.remove(key, future);  // let the next caller try again.
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
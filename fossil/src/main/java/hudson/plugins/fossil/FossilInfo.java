@@ -0,0 +1,243 @@
+package hudson.plugins.fossil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The output of <tt>fossil info</tt> or <tt>fossil open --keep</tt>, parsed into typed fields.
+ *
+ * The output looks like:
+ * <pre>
+ * project-name: Blabla
+ * repository:   C:/src/blabla/blabla
+ * local-root:   C:/src/myroot/
+ * checkout:     886b406bcf4276879cc9d1c9869772991aeaf21e 2012-06-02 22:42:54 UTC
+ * parent:       2dd1b06dcc27781581f2bd2cbe269458ccf0b4ee 2012-06-02 22:18:35 UTC
+ * tags:         trunk
+ * comment:      made a comment  here. (user: user2)
+ *               more stuff.
+ * </pre>
+ *
+ * A line that starts in the first column with <tt>name:</tt> starts a field; an indented line continues
+ * the previous field (long comments and tag lists wrap).  The parser makes a single pass over the text,
+ * does not depend on the order or number of lines, and keeps fields it does not know about.
+ *
+ * @author Ron Perrella
+ */
+public final class FossilInfo {
+
+    private final Map<String, String> fields;
+    private final String checkout;
+    private final String checkoutDate;
+    private final String parent;
+    private final String parentDate;
+    private final List<String> tags;
+    private final String comment;
+
+    private FossilInfo(Map<String, String> fields) {
+        this.fields = Collections.unmodifiableMap(fields);
+
+        String[] c = splitHash(fields.get("checkout"));
+        this.checkout = c[0];
+        this.checkoutDate = c[1];
+        String[] p = splitHash(fields.get("parent"));
+        this.parent = p[0];
+        this.parentDate = p[1];
+
+        List<String> t = new ArrayList<String>();
+        String tagText = fields.get("tags");
+        if (tagText != null) {
+            int from = 0;
+            for (int i = 0; i <= tagText.length(); i++) {
+                if (i == tagText.length() || tagText.charAt(i) == ',' || tagText.charAt(i) == '\n') {
+                    String tag = tagText.substring(from, i).trim();
+                    if (tag.length() > 0) {
+                        t.add(tag);
+                    }
+                    from = i + 1;
+                }
+            }
+        }
+        this.tags = Collections.unmodifiableList(t);
+
+        String cmt = fields.get("comment");
+        this.comment = cmt == null ? null : cmt + "\n";
+    }
+
+    /**
+     * Parse the output of <tt>fossil info</tt> or <tt>fossil open --keep</tt>.
+     *
+     * @param text the command output (may be empty, or contain other messages)
+     * @return the fields found; never null.
+     */
+    public static FossilInfo parse(String text) {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        String key = null;
+        StringBuilder value = new StringBuilder();
+
+        int n = text.length();
+        int start = 0;
+        while (start < n) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = n;
+            }
+            int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+
+            int colon = keyEnd(text, start, lineEnd);
+            if (colon > 0) {
+                if (key != null) {
+                    fields.put(key, value.toString());
+                }
+                key = text.substring(start, colon);
+                value.setLength(0);
+                appendTrimmed(value, text, colon + 1, lineEnd);
+            } else if (key != null) {
+                int len = value.length();
+                value.append('\n');
+                if (!appendTrimmed(value, text, start, lineEnd)) {
+                    value.setLength(len);  // blank line.
+                }
+            }
+            start = end + 1;
+        }
+        if (key != null) {
+            fields.put(key, value.toString());
+        }
+        return new FossilInfo(fields);
+    }
+
+    /**
+     * @return the index of the colon if the line starts with a field name, else -1.
+     */
+    private static int keyEnd(String text, int start, int end) {
+        int i = start;
+        while (i < end) {
+            char ch = text.charAt(i);
+            if (!(Character.isLetterOrDigit(ch) || ch == '-' || ch == '_')) {
+                break;
+            }
+            i++;
+        }
+        if (i == start || i >= end || text.charAt(i) != ':') {
+            return -1;
+        }
+        if (i + 1 < end && !Character.isWhitespace(text.charAt(i + 1))) {
+            return -1;  // e.g. "C:/src" or "http://..."
+        }
+        return i;
+    }
+
+    private static boolean appendTrimmed(StringBuilder sb, String text, int from, int to) {
+        while (from < to && Character.isWhitespace(text.charAt(from))) {
+            from++;
+        }
+        while (to > from && Character.isWhitespace(text.charAt(to - 1))) {
+            to--;
+        }
+        sb.append(text, from, to);
+        return to > from;
+    }
+
+    /**
+     * "hash date" -&gt; {hash, date}
+     */
+    private static String[] splitHash(String value) {
+        if (value == null) {
+            return new String[]{null, null};
+        }
+        int sp = 0;
+        while (sp < value.length() && !Character.isWhitespace(value.charAt(sp))) {
+            sp++;
+        }
+        return new String[]{value.substring(0, sp), sp < value.length() ? value.substring(sp).trim() : null};
+    }
+
+    /**
+     * @return the hash of the checked out checkin, or null if the output had none.
+     */
+    public String getCheckout() {
+        return checkout;
+    }
+
+    /**
+     * @return when the checked out checkin was made (e.g. "2012-06-02 22:42:54 UTC"), or null
+     */
+    public String getCheckoutDate() {
+        return checkoutDate;
+    }
+
+    /**
+     * @return the hash of the checkout's primary parent, or null
+     */
+    public String getParent() {
+        return parent;
+    }
+
+    /**
+     * @return when the parent was made, or null
+     */
+    public String getParentDate() {
+        return parentDate;
+    }
+
+    /**
+     * @return the tags on the checkout (possibly empty)
+     */
+    public List<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return the checkout's comment, one trimmed line per comment line, each ending in a newline; or null
+     */
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * @param name a field name without the colon, e.g. "project-code"
+     * @return the raw field value (continuation lines joined with newlines), or null
+     */
+    public String get(String name) {
+        return fields.get(name);
+    }
+
+    /**
+     * @return the same information in the form {@link FossilScm#fossil_info_parser(String)} has always returned.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> tab = new LinkedHashMap<String, String>(fields);
+        if (checkout != null) {
+            tab.put("checkout", checkout);
+            putIfPresent(tab, "checkout-date", checkoutDate);
+        }
+        if (parent != null) {
+            tab.put("parent", parent);
+            putIfPresent(tab, "parent-date", parentDate);
+        }
+        if (fields.containsKey("tags")) {
+            StringBuilder sb = new StringBuilder();
+            for (String t : tags) {
+                sb.append(sb.length() > 0 ? ", " : "").append(t);
+            }
+            tab.put("tags", sb.toString());
+        }
+        putIfPresent(tab, "comment", comment);
+        return tab;
+    }
+
+    private static void putIfPresent(Map<String, String> tab, String key, String value) {
+        if (value != null) {
+            tab.put(key, value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FossilInfo " + checkout;
+    }
+}
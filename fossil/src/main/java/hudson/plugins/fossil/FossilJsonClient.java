@@ -0,0 +1,343 @@
+package hudson.plugins.fossil;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * A client for the Fossil server's JSON API (<tt>/json/...</tt>).
+ *
+ * The JSON timeline returns full hashes, users, tags, parents and changed files in one structured
+ * response, so the remote tip and the checkins between two revisions can be found without a local
+ * clone and without forking fossil.
+ *
+ * The JSON API is optional in Fossil.  When a server does not offer it, the calls throw
+ * {@link UnavailableException} and the server is remembered for a while so that callers go straight
+ * to the RSS feed instead.
+ *
+ * @see <a href="http://www.fossil-scm.org/index.html/doc/trunk/www/json-api/index.md">Fossil JSON API</a>
+ * @author Ron Perrella
+ */
+public class FossilJsonClient {
+
+    /**
+     * How long to remember that a server has no JSON API.
+     */
+    private static final long RETRY_JSON_AFTER = 60L * 60L * 1000L;
+
+    /**
+     * How many checkins to ask for per timeline request.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Upper bound on how far back {@link #getCheckinsBetween(String, String)} will walk.
+     */
+    private static final int MAX_CHECKINS = 5000;
+
+    /**
+     * How many recent checkins {@link #getBranchTips()} scans for branch tips.
+     */
+    private static final int TIP_WINDOW = 500;
+
+    /**
+     * The JSON API's result codes for authentication and authorization errors start with this.
+     */
+    private static final String ACCESS_DENIED = "\"resultCode\":\"FOSSIL-2";
+
+    /**
+     * When to try the JSON API again, by server URL without credentials.
+     */
+    private static final Map<String, Long> noJsonUntil = new ConcurrentHashMap<String, Long>();
+
+    private final String baseUrl;
+    private final String serverUrl;  // baseUrl without credentials.
+    private final String branch;
+
+    /**
+     * @param serverUrl the Fossil server URL (may include credentials)
+     */
+    public FossilJsonClient(String serverUrl) {
+        this(serverUrl, "");
+    }
+
+    /**
+     * @param serverUrl the Fossil server URL (may include credentials)
+     * @param branch only report checkins carrying this tag (empty for all checkins)
+     */
+    public FossilJsonClient(String serverUrl, String branch) {
+        this.baseUrl = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
+        this.serverUrl = withoutCredentials(baseUrl);
+        this.branch = branch == null ? "" : branch;
+    }
+
+    /**
+     * @return false if this server recently turned out not to support the JSON API.
+     */
+    public boolean isAvailable() {
+        Long until = noJsonUntil.get(serverUrl);
+        return until == null || until < System.currentTimeMillis();
+    }
+
+    /**
+     * @return the most recent checkin on the server (on the branch, if one was given), or null if there is none.
+     * @throws UnavailableException if the server has no JSON API
+     * @throws IOException
+     */
+    public FossilCheckin getTip() throws IOException {
+        List<FossilCheckin> ci = timeline(1, null, false);
+        return ci.isEmpty() ? null : ci.get(0);
+    }
+
+    /**
+     * List the checkins after oldRevId up to and including newRevId, newest first, with their files.
+     *
+     * @param oldRevId the baseline checkin (full hash)
+     * @param newRevId the current checkin (full hash)
+     * @return the checkins, or null if oldRevId could not be found within a reasonable distance.
+     * @throws UnavailableException if the server has no JSON API
+     * @throws IOException
+     */
+    public List<FossilCheckin> getCheckinsBetween(String oldRevId, String newRevId) throws IOException {
+        List<FossilCheckin> result = new ArrayList<FossilCheckin>();
+        Set<String> seen = new HashSet<String>();
+        boolean collecting = false;
+        Long before = null;
+
+        while (result.size() < MAX_CHECKINS) {
+            List<FossilCheckin> page = timeline(PAGE_SIZE, before, true);
+            boolean progress = false;
+            for (FossilCheckin ci : page) {
+                if (!seen.add(ci.getUuid())) {
+                    continue;  // pages overlap on the boundary timestamp.
+                }
+                progress = true;
+                if (ci.getUuid().equals(oldRevId)) {
+                    return collecting ? result : null;
+                }
+                if (ci.getUuid().equals(newRevId)) {
+                    collecting = true;
+                }
+                if (collecting) {
+                    result.add(ci);
+                }
+            }
+            if (!progress || page.size() < PAGE_SIZE) {
+                break;  // reached the beginning of history.
+            }
+            before = page.get(page.size() - 1).getTimestamp();
+        }
+        return null;
+    }
+
+    /**
+     * List the open branches and the checkin at the tip of each.
+     *
+     * The branch names come from one <tt>/json/branch/list</tt> request and the tips from one timeline
+     * request over the most recent checkins: the newest checkin carrying a branch tag is that branch's tip.
+     * Only branches that have been quiet for longer than that window cost a request of their own.
+     * Use a client created without a branch, or the timeline is filtered to that branch.
+     *
+     * @return open branch name to tip checkin, sorted by name
+     * @throws UnavailableException if the server has no JSON API
+     * @throws IOException
+     */
+    public Map<String, FossilCheckin> getBranchTips() throws IOException {
+        Set<String> wanted = new HashSet<String>(parseBranchList(get("/json/branch/list")));
+        Map<String, FossilCheckin> tips = new TreeMap<String, FossilCheckin>();
+
+        for (FossilCheckin ci : timeline(TIP_WINDOW, null, false)) {
+            for (String tag : ci.getTags()) {
+                if (wanted.remove(tag)) {
+                    tips.put(tag, ci);
+                }
+            }
+            if (wanted.isEmpty()) {
+                break;
+            }
+        }
+        for (String name : wanted) {
+            FossilCheckin tip = new FossilJsonClient(baseUrl, name).getTip();
+            if (tip != null) {
+                tips.put(name, tip);
+            }
+        }
+        return tips;
+    }
+
+    private List<FossilCheckin> timeline(int limit, Long before, boolean files) throws IOException {
+        StringBuilder path = new StringBuilder("/json/timeline/checkin?limit=").append(limit);
+        if (before != null) {
+            path.append("&before=").append(URLEncoder.encode(julianDay(before), "UTF-8"));
+        }
+        if (branch.length() > 0) {
+            path.append("&tag=").append(URLEncoder.encode(branch, "UTF-8"));
+        }
+        if (files) {
+            path.append("&files=1");
+        }
+        return parseTimeline(get(path.toString()));
+    }
+
+    /**
+     * The JSON API accepts a Julian day number wherever it accepts a date.
+     */
+    private static String julianDay(long epochSeconds) {
+        return Double.toString(epochSeconds / 86400.0 + 2440587.5);
+    }
+
+    private String get(String path) throws IOException {
+        String body;
+        try {
+            body = FossilHttp.get(baseUrl, path).trim();
+            if (body.contains(ACCESS_DENIED)) {
+                FossilHttp.invalidateSession(baseUrl);  // the session may have expired on the server.
+                body = FossilHttp.get(baseUrl, path).trim();
+            }
+        } catch (java.io.FileNotFoundException e) {
+            markUnavailable();  // 404: the server was built without JSON support.
+            throw new UnavailableException("no JSON API at " + path);
+        }
+        if (!body.startsWith("{")) {
+            markUnavailable();  // an HTML page: JSON is disabled or the path is not routed.
+            throw new UnavailableException("no JSON API at " + path);
+        }
+        return body;
+    }
+
+    /**
+     * @return the URL without the <tt>user:password@</tt> part, if any
+     */
+    static String withoutCredentials(String url) {
+        int scheme = url.indexOf("://");
+        int start = scheme < 0 ? 0 : scheme + 3;
+        int end = url.indexOf('/', start);
+        int at = url.lastIndexOf('@', end < 0 ? url.length() : end);
+        return at < start ? url : url.substring(0, start) + url.substring(at + 1);
+    }
+
+    private void markUnavailable() {
+        logger.log(Level.INFO, "Fossil JSON API not available; using RSS for a while");
+        noJsonUntil.put(serverUrl, System.currentTimeMillis() + RETRY_JSON_AFTER);
+    }
+
+    /**
+     * Parse a <tt>/json/timeline/checkin</tt> response.
+     *
+     * @param json the response body
+     * @return the checkins, newest first
+     * @throws UnavailableException if the server answered with an error (e.g. access denied)
+     */
+    static List<FossilCheckin> parseTimeline(String json) throws UnavailableException {
+        List<FossilCheckin> result = new ArrayList<FossilCheckin>();
+        JSONObject root;
+        try {
+            root = JSONObject.fromObject(json);
+        } catch (JSONException e) {
+            throw new UnavailableException("unparseable JSON response");
+        }
+        if (root.has("resultCode")) {
+            throw new UnavailableException(root.optString("resultCode") + ": " + root.optString("resultText"));
+        }
+        JSONObject payload = root.optJSONObject("payload");
+        JSONArray timeline = payload == null ? null : payload.optJSONArray("timeline");
+        if (timeline == null) {
+            return result;
+        }
+
+        for (int i = 0; i < timeline.size(); i++) {
+            JSONObject e = timeline.optJSONObject(i);
+            if (e == null || e.isNullObject()) {
+                continue;
+            }
+            List<FossilCheckin.FileChange> files = new ArrayList<FossilCheckin.FileChange>();
+            JSONArray fa = e.optJSONArray("files");
+            if (fa != null) {
+                for (int j = 0; j < fa.size(); j++) {
+                    JSONObject f = fa.optJSONObject(j);
+                    if (f != null && !f.isNullObject()) {
+                        files.add(new FossilCheckin.FileChange(op(f.optString("state")), f.optString("name")));
+                    }
+                }
+            }
+            result.add(new FossilCheckin(
+                    e.optString("uuid"),
+                    e.optLong("timestamp"),
+                    e.optString("user"),
+                    e.optString("comment"),
+                    strings(e.optJSONArray("tags")),
+                    strings(e.optJSONArray("parents")),
+                    files));
+        }
+        return result;
+    }
+
+    /**
+     * Parse a <tt>/json/branch/list</tt> response (open branches only, which is the server's default).
+     *
+     * @param json the response body
+     * @return the branch names
+     * @throws UnavailableException if the server answered with an error (e.g. access denied)
+     */
+    static List<String> parseBranchList(String json) throws UnavailableException {
+        JSONObject root;
+        try {
+            root = JSONObject.fromObject(json);
+        } catch (JSONException e) {
+            throw new UnavailableException("unparseable JSON response");
+        }
+        if (root.has("resultCode")) {
+            throw new UnavailableException(root.optString("resultCode") + ": " + root.optString("resultText"));
+        }
+        JSONObject payload = root.optJSONObject("payload");
+        return strings(payload == null ? null : payload.optJSONArray("branches"));
+    }
+
+    private static char op(String state) {
+        if ("added".equals(state)) {
+            return 'A';
+        }
+        if ("removed".equals(state)) {
+            return 'D';
+        }
+        return 'E';
+    }
+
+    private static List<String> strings(JSONArray a) {
+        List<String> result = new ArrayList<String>();
+        if (a != null) {
+            for (int i = 0; i < a.size(); i++) {
+                result.add(a.getString(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Thrown when the server does not (or will not) answer JSON requests; callers fall back to RSS.
+     */
+    public static class UnavailableException extends IOException {
+
+        /**
+         * @param msg why JSON is not available
+         */
+        public UnavailableException(String msg) {
+            super(msg);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilJsonClient.class.getName());
+}
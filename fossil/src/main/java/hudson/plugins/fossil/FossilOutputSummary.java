@@ -0,0 +1,183 @@
+package hudson.plugins.fossil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stands in for the build log while a fossil command runs in quiet mode.
+ *
+ * An update of a large tree prints a line per file, which used to go to the console over the remoting
+ * channel and into the build log on the master.  In quiet mode the raw output goes to a compressed side
+ * file instead, and this stream only counts what it sees: files added, updated, removed (and merged or in
+ * conflict), and the bytes received by a clone or pull.  The console gets one summary line, plus the last
+ * lines of output if the command failed.
+ *
+ * @author Ron Perrella
+ */
+final class FossilOutputSummary extends OutputStream {
+
+    private static final int TAIL = 20;
+    private static final Pattern TOTAL_RECEIVED = Pattern.compile("(\\d+) bytes received");
+    private static final Pattern RECEIVED = Pattern.compile("^Received:\\s+(\\d+)");
+
+    private final String step;
+    private final OutputStream raw;
+    private final long start = System.currentTimeMillis();
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private final LinkedList<String> tail = new LinkedList<String>();
+    private int added, updated, removed, merged, conflicts;
+    private long bytesReceived = -1;
+
+    /**
+     * @param step the fossil subcommand, for the summary
+     * @param raw where the raw output goes (may be null)
+     */
+    FossilOutputSummary(String step, OutputStream raw) {
+        this.step = step;
+        this.raw = raw;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (raw != null) {
+            raw.write(b);
+        }
+        take(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (raw != null) {
+            raw.write(b, off, len);
+        }
+        for (int i = off; i < off + len; i++) {
+            take(b[i]);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (raw != null) {
+            raw.flush();
+        }
+    }
+
+    /**
+     * Does not close the raw stream, which is shared by all the steps of a checkout.
+     */
+    @Override
+    public void close() throws IOException {
+        endLine();
+        flush();
+    }
+
+    private void take(int b) {
+        if (b == '\n' || b == '\r') {  // progress lines end in a bare CR.
+            endLine();
+        } else {
+            line.write(b);
+        }
+    }
+
+    private void endLine() {
+        if (line.size() == 0) {
+            return;
+        }
+        String s;
+        try {
+            s = line.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            s = line.toString();
+        }
+        line.reset();
+        count(s);
+        tail.add(s);
+        if (tail.size() > TAIL) {
+            tail.removeFirst();
+        }
+    }
+
+    private void count(String s) {
+        int sp = s.indexOf(' ');
+        String word = sp < 0 ? s : s.substring(0, sp);
+        if (word.equals("ADD") || word.equals("ADDED")) {
+            added++;
+        } else if (word.equals("UPDATE") || word.equals("UPDATED") || word.equals("EDITED")) {
+            updated++;
+        } else if (word.equals("REMOVE") || word.equals("REMOVED") || word.equals("DELETE") || word.equals("DELETED")) {
+            removed++;
+        } else if (word.equals("MERGE") || word.equals("MERGED")) {
+            merged++;
+        } else if (word.equals("CONFLICT")) {
+            conflicts++;
+        } else if (s.startsWith("Total network traffic:")) {
+            Matcher m = TOTAL_RECEIVED.matcher(s);
+            if (m.find()) {
+                bytesReceived = Long.parseLong(m.group(1));
+            }
+        } else {
+            Matcher m = RECEIVED.matcher(s);
+            if (m.find()) {
+                bytesReceived = Long.parseLong(m.group(1));
+            }
+        }
+    }
+
+    /**
+     * @return e.g. "fossil update: 3 added, 120 updated, 0 removed, 2.4s"
+     */
+    String getSummary() {
+        endLine();
+        StringBuilder sb = new StringBuilder("fossil ").append(step).append(": ");
+        sb.append(added).append(" added, ").append(updated).append(" updated, ").append(removed).append(" removed");
+        if (merged > 0) {
+            sb.append(", ").append(merged).append(" merged");
+        }
+        if (conflicts > 0) {
+            sb.append(", ").append(conflicts).append(" in conflict");
+        }
+        if (bytesReceived >= 0) {
+            sb.append(", ").append(bytesReceived).append(" bytes received");
+        }
+        long ms = System.currentTimeMillis() - start;
+        sb.append(", ").append(ms / 1000).append('.').append(ms % 1000 / 100).append('s');
+        return sb.toString();
+    }
+
+    /**
+     * Print the summary, and the last lines of output if the command failed.
+     *
+     * @param console the build log
+     * @param ok true if the command succeeded
+     */
+    void report(PrintStream console, boolean ok) {
+        console.println("info: " + getSummary());
+        if (!ok) {
+            for (String s : tail) {
+                console.println("  " + s);
+            }
+        }
+    }
+
+    int getAdded() {
+        return added;
+    }
+
+    int getUpdated() {
+        return updated;
+    }
+
+    int getRemoved() {
+        return removed;
+    }
+
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+}
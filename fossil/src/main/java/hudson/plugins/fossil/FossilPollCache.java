@@ -0,0 +1,110 @@
+package hudson.plugins.fossil;
+
+import hudson.model.AbstractProject;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, per job, the checkins that polling found between the baseline and the new tip.
+ *
+ * When the build that polling triggered checks out exactly that pair of revisions, the change log is
+ * written from here and the slave does not have to run <tt>fossil timeline</tt> at all.
+ *
+ * @author Ron Perrella
+ */
+final class FossilPollCache {
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private FossilPollCache() {
+    }
+
+    /**
+     * Remember what polling found for a job (replaces any earlier entry).
+     *
+     * @param project the polled job
+     * @param oldRevId the polling baseline
+     * @param newRevId the remote tip
+     * @param checkins the checkins after oldRevId up to newRevId, newest first
+     */
+    static void put(AbstractProject<?, ?> project, String oldRevId, String newRevId, List<FossilCheckin> checkins) {
+        entries.put(project.getFullName(), new Entry(oldRevId, newRevId, checkins));
+    }
+
+    /**
+     * @param project a job
+     * @return what polling last found for the job, or null.
+     */
+    static Entry get(AbstractProject<?, ?> project) {
+        return entries.get(project.getFullName());
+    }
+
+    /**
+     * Forget the entry for a job once a build has used it.
+     *
+     * @param project a job
+     */
+    static void remove(AbstractProject<?, ?> project) {
+        entries.remove(project.getFullName());
+    }
+
+    /**
+     * The checkins between one revision pair.
+     */
+    static final class Entry {
+
+        private final String oldRevId;
+        private final String newRevId;
+        private final List<FossilCheckin> checkins;
+
+        Entry(String oldRevId, String newRevId, List<FossilCheckin> checkins) {
+            this.oldRevId = oldRevId;
+            this.newRevId = newRevId;
+            this.checkins = Collections.unmodifiableList(checkins);
+        }
+
+        String getOldRevId() {
+            return oldRevId;
+        }
+
+        String getNewRevId() {
+            return newRevId;
+        }
+
+        List<FossilCheckin> getCheckins() {
+            return checkins;
+        }
+
+        /**
+         * @param oldRev revision before the checkout
+         * @param newRev revision after the checkout
+         * @return true if this entry describes exactly that pair.
+         */
+        boolean matches(FossilRevisionState oldRev, FossilRevisionState newRev) {
+            return oldRev != null && newRev != null
+                    && oldRevId.equals(oldRev.getRevId()) && newRevId.equals(newRev.getRevId());
+        }
+
+        /**
+         * Write the checkins as a change log that {@link FossilChangeLogParser} understands.
+         *
+         * @param changelogFile the build's change log file
+         * @throws IOException
+         */
+        void writeChangelog(File changelogFile) throws IOException {
+            Writer out = new OutputStreamWriter(new FileOutputStream(changelogFile), "UTF-8");
+            try {
+                FossilChangeLogFormat.write(out, checkins);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package hudson.plugins.fossil;
+
+import hudson.model.Cause;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.kohsuke.stapler.export.Exported;
+
+/**
+ * Records which checkins polling found for the build it triggered.
+ *
+ * @author Ron Perrella
+ */
+public class FossilPollCause extends Cause {
+
+    private final List<String> commits;
+
+    /**
+     * @param checkins the checkins found by polling, newest first
+     */
+    FossilPollCause(List<FossilCheckin> checkins) {
+        List<String> c = new ArrayList<String>(checkins.size());
+        for (FossilCheckin ci : checkins) {
+            c.add(ci.getUuid());
+        }
+        this.commits = Collections.unmodifiableList(c);
+    }
+
+    /**
+     * @return the number of checkins polling found
+     */
+    @Exported
+    public int getCommitCount() {
+        return commits.size();
+    }
+
+    /**
+     * @return the hashes of the checkins polling found, newest first
+     */
+    @Exported
+    public List<String> getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return a description for the build page
+     */
+    @Override
+    public String getShortDescription() {
+        return "Fossil polling found " + commits.size() + (commits.size() == 1 ? " new checkin" : " new checkins");
+    }
+}
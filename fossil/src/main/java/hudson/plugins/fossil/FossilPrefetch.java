@@ -0,0 +1,171 @@
+package hudson.plugins.fossil;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Launcher.LocalLauncher;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pulls new checkins into a job's repository as soon as polling sees them, before the build starts.
+ *
+ * The quiet period and the time in the queue are otherwise wasted, and the pull happens inside the
+ * build.  When enabled (globally, see {@link FossilScm.FossilDescriptorImpl#isPrefetch()}), a poll that
+ * finds a change starts a <tt>fossil pull</tt> in the background on the node that last built the job,
+ * into the repository of its workspace.  The pull holds the same repository lock as a checkout, so a build
+ * that starts meanwhile waits for it instead of pulling the same artifacts again.
+ *
+ * The checkout reports whether the prefetch paid off: a hit if the build ran on the same node and checked
+ * out the revision that was prefetched, a miss otherwise.
+ *
+ * @author Ron Perrella
+ */
+final class FossilPrefetch {
+
+    private static final Map<String, Pending> pending = new ConcurrentHashMap<String, Pending>();  // by job
+    private static long started, failed, hits, misses;
+
+    private FossilPrefetch() {
+    }
+
+    /**
+     * Start a prefetch for a job, unless one for the same revision is still running.
+     *
+     * @param project the job whose poll found a change
+     * @param scm the job's configuration
+     * @param revId the new remote revision
+     */
+    static void start(AbstractProject<?, ?> project, FossilScm scm, String revId) {
+        AbstractBuild<?, ?> last = project.getLastBuild();
+        FilePath workspace = last == null ? null : last.getWorkspace();
+        if (workspace == null || last.getBuiltOn() == null) {
+            return;  // never built, or the node is gone.
+        }
+        Pending p = pending.get(project.getFullName());
+        if (p != null && p.revId.equals(revId) && !p.future.isDone()) {
+            return;
+        }
+        try {
+            Future<Boolean> future = workspace.actAsync(new Task(scm.getDescriptor().getFossilExecutable(),
+                    scm.getLocalRepository(), scm.getAuthenticatedServerUrl()));
+            pending.put(project.getFullName(), new Pending(revId, last.getBuiltOnStr(), future));
+            synchronized (FossilPrefetch.class) {
+                started++;
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Cannot prefetch for " + project.getFullName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Account for the prefetch of a job once its checkout is done.
+     *
+     * @param build the build that checked out
+     * @param revId the revision it checked out
+     * @return a line for the build log, or null if there was no prefetch
+     */
+    static String claim(AbstractBuild<?, ?> build, String revId) {
+        Pending p = pending.remove(build.getProject().getFullName());
+        if (p == null) {
+            return null;
+        }
+        boolean ok = false;
+        if (p.future.isDone()) {
+            try {
+                ok = Boolean.TRUE.equals(p.future.get());
+            } catch (ExecutionException e) {
+                logger.log(Level.FINE, "Prefetch failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long age = (System.currentTimeMillis() - p.startTime) / 1000;
+        synchronized (FossilPrefetch.class) {
+            if (!p.future.isDone() || !ok) {
+                failed += p.future.isDone() ? 1 : 0;
+                misses++;
+                return "info: prefetch " + (p.future.isDone() ? "failed" : "did not finish") + " (started " + age + "s ago)";
+            }
+            if (!p.revId.equals(revId) || !p.node.equals(build.getBuiltOnStr())) {
+                misses++;
+                return "info: prefetch missed (it pulled " + p.revId + " on '" + p.node + "' " + age + "s ago)";
+            }
+            hits++;
+            return "info: prefetch hit (pulled " + age + "s before the checkout)";
+        }
+    }
+
+    /**
+     * @return e.g. "12 started, 9 hits, 2 misses, 1 failed"
+     */
+    static synchronized String getStatistics() {
+        return started + " started, " + hits + " hits, " + misses + " misses, " + failed + " failed";
+    }
+
+    private static final class Pending {
+
+        final String revId;
+        final String node;
+        final Future<Boolean> future;
+        final long startTime = System.currentTimeMillis();
+
+        Pending(String revId, String node, Future<Boolean> future) {
+            this.revId = revId;
+            this.node = node == null ? "" : node;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Runs on the node: pulls into the workspace's repository, if there is one.
+     */
+    static final class Task implements FileCallable<Boolean> {
+
+        private final String fossilExecutable;
+        private final String localRepository;
+        private final String authenticatedServerUrl;
+
+        Task(String fossilExecutable, String localRepository, String authenticatedServerUrl) {
+            this.fossilExecutable = fossilExecutable;
+            this.localRepository = localRepository;
+            this.authenticatedServerUrl = authenticatedServerUrl;
+        }
+
+        public Boolean invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            File repo = FossilCheckoutTask.repository(workspace, localRepository);
+            synchronized (FossilCheckoutTask.lockFor(repo)) {
+                if (!repo.exists()) {
+                    return false;  // the checkout will clone.
+                }
+                ArgumentListBuilder args = new ArgumentListBuilder();
+                args.add(fossilExecutable, "pull");
+                args.add(authenticatedServerUrl);
+                args.add("--repository", repo.getPath());
+                args.add("--once");
+
+                Launcher launcher = new LocalLauncher(TaskListener.NULL);
+                Proc proc = launcher.launch().cmds(args).stdout(TaskListener.NULL.getLogger()).pwd(workspace).start();
+                return FossilProcess.join(proc, "pull", TaskListener.NULL) == 0;
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilPrefetch.class.getName());
+}
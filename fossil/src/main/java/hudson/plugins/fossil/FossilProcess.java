@@ -0,0 +1,147 @@
+package hudson.plugins.fossil;
+
+import hudson.Proc;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timeouts, cancellation and retry policy for the fossil processes started by a build.
+ *
+ * Every fossil subcommand gets a timeout (in minutes).  A watchdog kills the process tree when it expires,
+ * so a stalled server cannot pin an executor forever.  If the build is aborted, the interrupt kills the
+ * child process as well.  Network-bound steps (clone, pull) are retried with exponential backoff.
+ *
+ * The defaults can be overridden with system properties on the machine running fossil, e.g.
+ * <tt>-Dhudson.plugins.fossil.FossilProcess.timeout.clone=120</tt> or
+ * <tt>-Dhudson.plugins.fossil.FossilProcess.retries=5</tt>.
+ *
+ * @author Ron Perrella
+ */
+final class FossilProcess {
+
+    private static final String PREFIX = FossilProcess.class.getName();
+
+    /**
+     * Shared by all watchdogs on this JVM. Daemon, so it never keeps a slave alive.
+     */
+    private static final Timer watchdogs = new Timer("Fossil process watchdog", true);
+
+    private FossilProcess() {
+    }
+
+    /**
+     * @param subcommand a fossil subcommand such as "clone" or "update"
+     * @return the timeout for the subcommand, in minutes.
+     */
+    static int timeoutMinutes(String subcommand) {
+        int def;
+        if ("clone".equals(subcommand)) {
+            def = 60;
+        } else if ("pull".equals(subcommand) || "update".equals(subcommand)) {
+            def = 30;
+        } else if ("timeline".equals(subcommand)) {
+            def = 10;
+        } else {
+            def = 5;
+        }
+        return Integer.getInteger(PREFIX + ".timeout." + subcommand, def);
+    }
+
+    /**
+     * @return how many times a network-bound step is attempted before giving up.
+     */
+    static int attempts() {
+        return Math.max(1, Integer.getInteger(PREFIX + ".retries", 3));
+    }
+
+    /**
+     * Wait before retrying a network-bound step: 5s, 10s, 20s ... capped at one minute.
+     *
+     * @param attempt the number of the attempt that just failed (1-based)
+     * @param listener where the wait is announced
+     * @throws InterruptedException if the build is aborted while waiting
+     */
+    static void backoff(int attempt, TaskListener listener) throws InterruptedException {
+        long delay = Math.min(60000L, 5000L << Math.min(attempt - 1, 4));
+        listener.getLogger().println("info: attempt " + attempt + " failed, retrying in " + (delay / 1000) + "s...");
+        Thread.sleep(delay);
+    }
+
+    /**
+     * Wait for a fossil process, killing it if it runs past its timeout or the build is aborted.
+     *
+     * @param proc the started process
+     * @param subcommand the fossil subcommand being run
+     * @param listener where a timeout is reported
+     * @return the exit code of the process
+     * @throws IOException if the process timed out
+     * @throws InterruptedException if the build was aborted (the process is killed first)
+     */
+    static int join(Proc proc, String subcommand, TaskListener listener) throws IOException, InterruptedException {
+        Watchdog dog = watch(proc, subcommand);
+        int ret;
+        try {
+            ret = proc.join();
+        } catch (InterruptedException e) {
+            proc.kill();
+            throw e;
+        } finally {
+            dog.cancel();
+        }
+        if (dog.expired) {
+            listener.error("fossil " + subcommand + " timed out after " + timeoutMinutes(subcommand) + " minutes and was killed");
+            throw new IOException("fossil " + subcommand + " timed out");
+        }
+        return ret;
+    }
+
+    /**
+     * Start a watchdog that kills the process when the subcommand's timeout expires.
+     * The caller must {@link Watchdog#cancel()} it once the process is done.
+     *
+     * @param proc the started process
+     * @param subcommand the fossil subcommand being run
+     * @return the watchdog
+     */
+    static Watchdog watch(Proc proc, String subcommand) {
+        Watchdog dog = new Watchdog(proc);
+        watchdogs.schedule(dog, timeoutMinutes(subcommand) * 60000L);
+        return dog;
+    }
+
+    /**
+     * Kills a process tree when it fires.
+     */
+    static final class Watchdog extends TimerTask {
+
+        private final Proc proc;
+        private volatile boolean expired = false;
+
+        Watchdog(Proc proc) {
+            this.proc = proc;
+        }
+
+        @Override
+        public void run() {
+            expired = true;
+            try {
+                proc.kill();
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to kill timed out fossil process", e);
+            }
+        }
+
+        /**
+         * @return true if the process was killed for running too long.
+         */
+        boolean isExpired() {
+            return expired;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilProcess.class.getName());
+}
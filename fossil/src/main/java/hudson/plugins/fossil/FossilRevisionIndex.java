@@ -0,0 +1,327 @@
+package hudson.plugins.fossil;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.ChangeLogSet;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-job index from checkin hash to the first build that contained it, and from tag to the builds
+ * whose changes carried it.
+ *
+ * Answering "which build first had checkin X" used to mean parsing the change log of every build.  The
+ * index is kept in memory and in <tt>fossil-revisions.log</tt> in the job directory.  It is updated when a
+ * build's change log is parsed (see {@link Listener}).  Builds that were made without the index (older
+ * builds, or while the plugin was disabled) are indexed lazily the first time the index is loaded.
+ *
+ * The file is append-only, one line per build: <tt>NUMBER TAB hash,tag,tag hash ...</tt>, so recording a
+ * build costs one line however long the job's history.  Loading compacts it if it holds lines that are
+ * duplicated or cut short.
+ *
+ * Hashes are kept sorted, so an abbreviated hash is resolved with one tree lookup.
+ *
+ * @author Ron Perrella
+ */
+public class FossilRevisionIndex {
+
+    private static final String FILE_NAME = "fossil-revisions.log";
+    private static final String OLD_FILE_NAME = "fossil-revisions.xml";  // rewritten on every build; replaced.
+    private static final FossilIndexCache<FossilRevisionIndex> indexes = new FossilIndexCache<FossilRevisionIndex>() {
+        @Override
+        protected FossilRevisionIndex load(AbstractProject<?, ?> project) {
+            FossilRevisionIndex index = new FossilRevisionIndex(new File(project.getRootDir(), FILE_NAME));
+            index.load();
+            index.catchUp(project);
+            File old = new File(project.getRootDir(), OLD_FILE_NAME);
+            if (old.exists() && !old.delete()) {
+                logger.log(Level.FINE, "Cannot delete {0}", old);
+            }
+            return index;
+        }
+    };
+
+    private final File file;
+    private final TreeMap<String, Integer> firstBuild = new TreeMap<String, Integer>();
+    private final TreeMap<String, TreeSet<Integer>> tagBuilds = new TreeMap<String, TreeSet<Integer>>();
+    private final Set<Integer> indexed = new HashSet<Integer>();
+
+    /**
+     * An index kept in memory only.
+     */
+    FossilRevisionIndex() {
+        this(null);
+    }
+
+    FossilRevisionIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param project a job
+     * @return the job's index, loaded (and brought up to date) on first use.
+     */
+    public static FossilRevisionIndex get(AbstractProject<?, ?> project) {
+        return indexes.get(project);
+    }
+
+    synchronized void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        List<String> kept = new ArrayList<String>();
+        int lines = 0;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String s;
+                while ((s = in.readLine()) != null) {
+                    lines++;
+                    int tab = s.indexOf('\t');
+                    if (tab <= 0 || !(s.endsWith(" ") || s.endsWith("\t"))) {
+                        continue;  // a line cut short by a crash.
+                    }
+                    int number = Integer.parseInt(s.substring(0, tab));
+                    if (indexed.contains(number)) {
+                        continue;  // recorded twice; the first line counts.
+                    }
+                    for (String checkin : s.substring(tab + 1).split(" ")) {
+                        String[] parts = checkin.split(",");
+                        if (parts[0].length() > 0) {
+                            List<String> tags = new ArrayList<String>();
+                            for (int i = 1; i < parts.length; i++) {
+                                tags.add(unescape(parts[i]));
+                            }
+                            add(number, parts[0], tags);
+                        }
+                    }
+                    indexed.add(number);
+                    kept.add(s);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read Fossil revision index " + file, e);
+            return;
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Corrupt Fossil revision index " + file, e);
+            return;
+        }
+        if (kept.size() < lines) {
+            compact(kept);
+        }
+    }
+
+    /**
+     * Index the finished builds that are not in the index yet (parsing their change logs once).
+     */
+    private synchronized void catchUp(AbstractProject<?, ?> project) {
+        List<AbstractBuild<?, ?>> missing = new ArrayList<AbstractBuild<?, ?>>();
+        for (AbstractBuild<?, ?> b : project.getBuilds()) {   // newest first
+            if (!b.isBuilding() && !indexed.contains(b.getNumber())) {
+                missing.add(b);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        Collections.reverse(missing);
+        StringBuilder lines = new StringBuilder();
+        for (AbstractBuild<?, ?> b : missing) {
+            lines.append(add(b.getNumber(), b.getChangeSet()));
+        }
+        append(lines.toString());
+    }
+
+    /**
+     * Record the checkins of a build, unless it is indexed already, and append them to the index file.
+     *
+     * @param number the build number
+     * @param changes the build's change log
+     */
+    public synchronized void record(int number, ChangeLogSet<?> changes) {
+        if (!indexed.contains(number)) {
+            append(add(number, changes));
+        }
+    }
+
+    /**
+     * @return the line of the index file for the build
+     */
+    private String add(int number, ChangeLogSet<?> changes) {
+        StringBuilder line = new StringBuilder();
+        line.append(number).append('\t');
+        if (changes instanceof FossilChangeLogSet) {
+            for (FossilChangeLogEntry e : (FossilChangeLogSet) changes) {
+                String hash = e.getCommitId().toLowerCase();
+                add(number, hash, e.getTags());
+                line.append(hash);
+                for (String tag : e.getTags()) {
+                    line.append(',').append(escape(tag));
+                }
+                line.append(' ');
+            }
+        }
+        indexed.add(number);
+        return line.append('\n').toString();
+    }
+
+    private void add(int number, String hash, List<String> tags) {
+        Integer first = firstBuild.get(hash);
+        if (first == null || first > number) {
+            firstBuild.put(hash, number);
+        }
+        for (String tag : tags) {
+            TreeSet<Integer> builds = tagBuilds.get(tag);
+            if (builds == null) {
+                builds = new TreeSet<Integer>();
+                tagBuilds.put(tag, builds);
+            }
+            builds.add(number);
+        }
+    }
+
+    private void append(String lines) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                out.write(lines);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to update Fossil revision index " + file, e);
+        }
+    }
+
+    /**
+     * Rewrite the index file with only the given lines.
+     */
+    private void compact(List<String> lines) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                for (String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file + " with " + tmp);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to compact Fossil revision index " + file, e);
+        }
+    }
+
+    private static String escape(String tag) {
+        return tag.replace("%", "%25").replace(",", "%2C").replace(" ", "%20").replace("\t", "%09").replace("\n", "%0A");
+    }
+
+    private static String unescape(String tag) {
+        return tag.indexOf('%') < 0 ? tag
+                : tag.replace("%0A", "\n").replace("%09", "\t").replace("%20", " ").replace("%2C", ",").replace("%25", "%");
+    }
+
+    /**
+     * @param hash a full or abbreviated checkin hash
+     * @return the number of the first build that contained the checkin, or null if no build did or the
+     *         abbreviation is ambiguous.
+     */
+    public synchronized Integer getFirstBuild(String hash) {
+        String prefix = hash.trim().toLowerCase();
+        if (prefix.length() == 0) {
+            return null;
+        }
+        Integer exact = firstBuild.get(prefix);
+        if (exact != null) {
+            return exact;
+        }
+        SortedMap<String, Integer> matches = firstBuild.subMap(prefix, prefix + Character.MAX_VALUE);
+        return matches.size() == 1 ? matches.get(matches.firstKey()) : null;
+    }
+
+    /**
+     * @param hash a full or abbreviated checkin hash
+     * @return the full hash, or null if it is unknown or ambiguous.
+     */
+    public synchronized String resolve(String hash) {
+        String prefix = hash.trim().toLowerCase();
+        if (prefix.length() == 0) {
+            return null;
+        }
+        if (firstBuild.containsKey(prefix)) {
+            return prefix;
+        }
+        SortedMap<String, Integer> matches = firstBuild.subMap(prefix, prefix + Character.MAX_VALUE);
+        return matches.size() == 1 ? matches.firstKey() : null;
+    }
+
+    /**
+     * @param tag a tag or branch name
+     * @return the numbers of the builds whose changes carried the tag, ascending (possibly empty)
+     */
+    public synchronized SortedSet<Integer> getBuildsWithTag(String tag) {
+        TreeSet<Integer> builds = tagBuilds.get(tag);
+        return builds == null ? new TreeSet<Integer>() : new TreeSet<Integer>(builds);
+    }
+
+    /**
+     * @return how many checkins are indexed.
+     */
+    public synchronized int size() {
+        return firstBuild.size();
+    }
+
+    /**
+     * Keeps the indexes (this one and the {@link FossilSearchIndex}) current as builds parse their change logs.
+     */
+    static final class Listener extends SCMListener {
+
+        @Override
+        public void onChangeLogParsed(AbstractBuild<?, ?> build, BuildListener listener, ChangeLogSet<?> changelog) throws Exception {
+            if (changelog instanceof FossilChangeLogSet) {
+                get(build.getProject()).record(build.getNumber(), changelog);
+                FossilSearchIndex.get(build.getProject()).record(build.getNumber(), changelog);
+            }
+        }
+    }
+
+    /**
+     * SCMListener is not an extension point in this core version, so register it by hand.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerListener() {
+        new Listener().register();
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilRevisionIndex.class.getName());
+}
@@ -0,0 +1,164 @@
+package hudson.plugins.fossil;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.TransientProjectActionFactory;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.SortedSet;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Exposes a job's {@link FossilRevisionIndex} and {@link FossilSearchIndex} at <tt>/job/NAME/fossil-revisions/</tt>.
+ *
+ * The page has small search boxes.  Tools can call
+ * <tt>lookup?id=HASH</tt> (the first build containing a checkin), <tt>lookup?tag=NAME</tt>
+ * (the builds carrying a tag) or <tt>search?q=QUERY</tt> (builds whose changes match), which answer with JSON.
+ *
+ * @author Ron Perrella
+ */
+public class FossilRevisionIndexAction implements Action {
+
+    private final AbstractProject<?, ?> project;
+
+    FossilRevisionIndexAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    /**
+     * @return the job whose index this is
+     */
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * @return the job's index
+     */
+    public FossilRevisionIndex getIndex() {
+        return FossilRevisionIndex.get(project);
+    }
+
+    /**
+     * @return the job's full-text index
+     */
+    public FossilSearchIndex getSearchIndex() {
+        return FossilSearchIndex.get(project);
+    }
+
+    /**
+     * @return the icon file name
+     */
+    public String getIconFileName() {
+        return "search.gif";
+    }
+
+    /**
+     * @return the display name for this action
+     */
+    public String getDisplayName() {
+        return "Find Fossil Checkin";
+    }
+
+    /**
+     * @return the URL name for this action
+     */
+    public String getUrlName() {
+        return "fossil-revisions";
+    }
+
+    /**
+     * Look up a checkin or a tag.
+     *
+     * @param id a full or abbreviated checkin hash (or empty)
+     * @param tag a tag name (or empty)
+     * @param rsp the response: JSON, or 404 if the checkin is unknown
+     * @throws IOException
+     */
+    public void doLookup(@QueryParameter String id, @QueryParameter String tag, StaplerResponse rsp) throws IOException {
+        FossilRevisionIndex index = getIndex();
+        JSONObject result = new JSONObject();
+
+        if (id != null && id.trim().length() > 0) {
+            Integer build = index.getFirstBuild(id);
+            if (build == null) {
+                rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No build contains checkin " + id + " (or the abbreviation is ambiguous)");
+                return;
+            }
+            result.put("id", index.resolve(id));
+            result.put("build", build);
+            result.put("url", project.getUrl() + build + "/");
+        } else if (tag != null && tag.trim().length() > 0) {
+            SortedSet<Integer> builds = index.getBuildsWithTag(tag.trim());
+            result.put("tag", tag.trim());
+            result.put("builds", JSONArray.fromObject(builds));
+        } else {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Specify id or tag");
+            return;
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Search the changes of all builds.
+     *
+     * @param q the query, e.g. <tt>path:src/net timeout author:ron</tt>
+     * @param max the maximum number of results (default 50)
+     * @param rsp the response: a JSON array of {build, score, url}, best match first
+     * @throws IOException
+     */
+    public void doSearch(@QueryParameter String q, @QueryParameter String max, StaplerResponse rsp) throws IOException {
+        if (q == null || q.trim().length() == 0) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Specify q");
+            return;
+        }
+        int limit = 50;
+        try {
+            if (max != null) {
+                limit = Math.max(1, Integer.parseInt(max));
+            }
+        } catch (NumberFormatException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "max must be a number");
+            return;
+        }
+
+        JSONArray result = new JSONArray();
+        for (FossilSearchIndex.Hit hit : getSearchIndex().search(q, limit)) {
+            JSONObject o = new JSONObject();
+            o.put("build", hit.getBuild());
+            o.put("score", hit.getScore());
+            o.put("url", project.getUrl() + hit.getBuild() + "/");
+            result.add(o);
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Adds the action to every job that uses Fossil.
+     */
+    @Extension
+    public static final class Factory extends TransientProjectActionFactory {
+
+        @Override
+        public Collection<? extends Action> createFor(AbstractProject target) {
+            if (target.getScm() instanceof FossilScm) {
+                return Collections.singleton(new FossilRevisionIndexAction(target));
+            }
+            return Collections.<Action>emptyList();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package hudson.plugins.fossil;
 
 import hudson.scm.SCMRevisionState;
+import java.util.List;
 
 /**
  * This class represents the revision state of a Fossil repository's most recent commit.
@@ -9,19 +10,36 @@ import hudson.scm.SCMRevisionState;
  * 
  * A Fossil artifact revision only has one revision id (unlike Bazaar)
  * 
+ * The state of a workspace after checkout is also kept as an action of the build (and saved with it),
+ * so the polling baseline survives a restart without looking at the workspace.
+ * 
  * @author Ron Perrella
  */
 
 public class FossilRevisionState extends SCMRevisionState {
 
     private final String rev_id;    // Fossil only needs a single hash to represent a Check-in.
+    private final String branch;    // the branch that was built (null if not known)
+    private final long timestamp;   // when the checkin was made, ms since the epoch (0 if not known)
+    private transient List<FossilCheckin> checkins;  // what polling found since the baseline, if known.
 
     /**
      * @param revId a Fossil revision id (Check-in)
      */
     
     public FossilRevisionState(String revId) {
+        this(revId, null, 0);
+    }
+
+    /**
+     * @param revId a Fossil revision id (Check-in), full length
+     * @param branch the branch the job follows (empty if it follows whatever is latest)
+     * @param timestamp when the checkin was made, ms since the epoch (0 if not known)
+     */
+    public FossilRevisionState(String revId, String branch, long timestamp) {
         this.rev_id = revId;
+        this.branch = branch;
+        this.timestamp = timestamp;
     }
     
     /**
@@ -54,6 +72,41 @@ public class FossilRevisionState extends SCMRevisionState {
         return this.rev_id;
     }
 
+    /**
+     * @return the branch the job followed when this state was recorded, or null if not known.
+     */
+    public String getBranch() {
+        return branch;
+    }
+
+    /**
+     * @return when the checkin was made, in ms since the epoch, or 0 if not known.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the checkins polling found between the baseline and this revision, or null if not known.
+     */
+    public List<FossilCheckin> getCheckins() {
+        return checkins;
+    }
+
+    /**
+     * @return the number of checkins polling found since the baseline, or -1 if not known.
+     */
+    public int getCommitCount() {
+        return checkins == null ? -1 : checkins.size();
+    }
+
+    /**
+     * @param checkins the checkins between the baseline and this revision, newest first
+     */
+    void setCheckins(List<FossilCheckin> checkins) {
+        this.checkins = checkins;
+    }
+
     @Override
     public String toString() {
         return "FossilRevisionState revid:" + this.rev_id;
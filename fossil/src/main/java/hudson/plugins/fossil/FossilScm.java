@@ -1,12 +1,8 @@
 package hudson.plugins.fossil;
 
-import hudson.EnvVars;
-
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Launcher.LocalLauncher;
-import hudson.Launcher.ProcStarter;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -14,27 +10,24 @@ import hudson.model.BuildListener;
 import hudson.scm.SCM;
 
 import hudson.model.Cause;
+import hudson.model.CauseAction;
 import hudson.model.Descriptor.FormException;
 import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.PollingResult;
 import hudson.scm.RepositoryBrowser;
 import hudson.scm.SCMDescriptor;
 import hudson.scm.SCMRevisionState;
-import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.net.URL;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -72,11 +65,9 @@ import org.kohsuke.stapler.StaplerRequest;
  */
 
 /* 
- * TODO: future - need to add a list of branches to build as well. (see Git plugin)
  * TODO: future - need a way to specify a tag to build as well. (instead of just latest.)
  * TODO: add validation to all Jelly forms.
  * TODO: refactoring: remove all Fossil command and put them into their own class.
- * TODO: add ability to build a branch rather than just the trunk.
  */
 public class FossilScm extends SCM {
 
@@ -96,11 +87,15 @@ public class FossilScm extends SCM {
     private boolean useTagging = false;  // if true, tag builds with a set of tags.
     private RepositoryBrowser repositoryBrowser;
     private String branch = ""; // may be empty if trunk build is required.
+    private boolean quiet = false;  // summarize fossil output in the console; the full output goes to a side file.
+    private boolean preserveTimestamps = false;  // never rewrite files whose content is already right.
+    private String bundleFrom = "";  // upstream job whose bundle replaces the pull (empty for none).
 
     /**
      * Construct a FossilScm object which represents a handle to the Fossil SCM in your environment.
      * 
      * Note: The names of these fields matter because they will be populated with JSON from the config.jelly file.
+     * Configurations saved before a field existed get its default in {@link #readResolve()}.
      * 
      * @param https the flag that indicates use of https or http
      * @param server the URL for the Fossil server which has the repository
@@ -110,9 +105,14 @@ public class FossilScm extends SCM {
      * @param clean a flag representing the desire to do a cleanBuild build
      * @param username username for the remote repository (anonymous may be permitted)
      * @param password password for the remote repository
+     * @param branch the branch to poll and build (empty for whatever is latest)
+     * @param quiet summarize the output of clone, pull and update in the console
+     * @param preserveTimestamps leave files whose content did not change untouched when (re)opening the repository
+     * @param bundleFrom the upstream job whose {@link FossilBundlePublisher} bundle to import instead of pulling
      */
     @DataBoundConstructor
-    public FossilScm(boolean https, String server, String serverpath, String port, String repository, boolean clean, String username, String password) {
+    public FossilScm(boolean https, String server, String serverpath, String port, String repository, boolean clean, String username, String password, String branch, boolean quiet,
+            boolean preserveTimestamps, String bundleFrom) {
         this.server = server;
 
         if (port == null || "".equals(port)) {
@@ -125,10 +125,43 @@ public class FossilScm extends SCM {
         this.cleanBuild = clean;
         this.username = username;
         this.password = password;
+        this.branch = Util.fixNull(branch).trim();
+        this.quiet = quiet;
+        this.preserveTimestamps = preserveTimestamps;
+        this.bundleFrom = Util.fixNull(bundleFrom).trim();
 
         this.repositoryBrowser = new FossilRepositoryBrowser(getServerUrl());
     }
 
+    /**
+     * @param branch a branch name
+     * @return a copy of this configuration that builds the given branch (same server and repository)
+     */
+    FossilScm forBranch(String branch) {
+        FossilScm scm = new FossilScm(https, server, serverpath, port, localRepository, cleanBuild, username, password, branch, quiet, preserveTimestamps, bundleFrom);
+        scm.port = port;
+        scm.serverpath = serverpath;
+        scm.useTagging = useTagging;
+        scm.repositoryBrowser = new FossilRepositoryBrowser(scm.getServerUrl());
+        return scm;
+    }
+
+    /**
+     * Give the fields added since a job's configuration was saved their defaults (XStream does not run the
+     * field initializers).  The boolean ones default to false anyway.
+     *
+     * @return this
+     */
+    protected Object readResolve() {
+        if (branch == null) {
+            branch = "";
+        }
+        if (bundleFrom == null) {
+            bundleFrom = "";
+        }
+        return this;
+    }
+
     /**
      * BOGUS constructor. For testing purposes only. 
      */
@@ -181,491 +214,128 @@ public class FossilScm extends SCM {
         }
 
         /*
-         * Determine if a localRepository is already present in the workspace. If so, it may be possible to perform
-         * an "pull" + "update" rather than a "clone" (which is slower).
-         * 
-         * This command performs a (possibly) remote check of the existence of the repository file in the workspace on the (remote) slave server.
+         * A bundle handed down by the upstream build replaces the pull, and pins the build to the upstream
+         * revision so the whole pipeline builds the same checkin.
          */
-
-        FilePath fp = new FilePath(workspace, getLocalRepository());
-        boolean canUpdate = fp.exists();
-
-        listener.getLogger().println("info: CanUpdate: " + (canUpdate ? "true" : "false"));
-
-        boolean shouldUpdate = true;  // controlling switch.
-
-        boolean result = update(canUpdate, shouldUpdate, cleanBuild, build, launcher, workspace, listener, changelogFile);
-
-        // TODO: Find a reasonable way to tag a build.
-        // This code pretends to go ahead and tag build.
-        // but what tag do we use? (or apparently, we can use multiple tags.)
-        // the reason question - is why bother - this would only tag the local repository.
-
-        if (useTagging) {
-            build.addAction(new FossilTagAction(build));
-            listener.getLogger().println("info: tagged build.");
-        }
-
-        listener.getLogger().println("info: Ending checkout...");
-
-        return result;
-    }
-
-    private void logSettings(BuildListener listener) {
-        listener.getLogger().println("serverUrl     :" + getServerUrl());
-        listener.getLogger().println("repository    :" + getLocalRepository());
-        listener.getLogger().println("username      :" + getUsername());
-        listener.getLogger().println("password      :" + (getPassword().equals("") ? "*Not Empty*" : "*Empty*"));
-        listener.getLogger().println("type          :" + getType());
-
-    }
-
-    /**
-     * update the workspace with code from the remote localRepository.
-     * 
-     * This method exists in order to allow for incremental updates of the workspace. This would reduce
-     * network bandwidth as well as time to build. The disadvantage is potential for merges.
-     * 
-     * NOTE: Fossil has its own "wipeWorkspace" command, which removes files that are not in the repository. This could be used as
-     * an alternative to wiping the directory.  Wiping the directory mandates a clone be performed, since the repository file is contained within
-     * the workspace.
-     * 
-     * 
-     * @param cleanBuild
-     * @param build
-     * @param launcher
-     * @param workspace
-     * @param listener
-     * @param changelogFile
-     * @return true if successful, false if failure.
-     * @throws InterruptedException
-     * @throws IOException 
-     */
-    private boolean update(boolean canUpdate, boolean allowUpdate, boolean wipeWorkspace, AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener, File changelogFile) throws InterruptedException, IOException {
-
-        FossilRevisionState oldRevisionState = getRevisionState(build, launcher, listener, workspace, getLocalRepository());
-
-        if (wipeWorkspace) {
-            fossil_clean_workspace(listener, launcher, workspace);
-        } else {
-            listener.getLogger().println("info: Not cleaning workspace (as requested by user) ...");
-        }
-
-        if (canUpdate && allowUpdate && (!wipeWorkspace)) {
-            if (!populate_workspace_from_pull(build, launcher, workspace, listener)) {
-                return false;
-            }
-        } else {
-            if (!populate_workspace_from_clone(build, launcher, workspace, listener)) {
-                return false;
-            }
-        }
-
-        FossilRevisionState newRevisionState = getRevisionState(build, launcher, listener, workspace, getLocalRepository());
-
-        if (oldRevisionState != null && newRevisionState != null) {
-            getLogBetweenRevisionStates(launcher, workspace, oldRevisionState, newRevisionState, changelogFile); // NOTE: updates the changeLogFile
-        }
-
-        return true;
-    }
-
-    private boolean fossil_clean_workspace(BuildListener listener, Launcher launcher, FilePath workspace)
-            throws InterruptedException {
-        listener.getLogger().println("info: Cleaning workspace...");
-        if (false) {
+        String buildTag = getBuildTag();
+        String bundleFrom = getBundleFrom();
+        AbstractBuild<?, ?> upstream = bundleFrom.length() == 0 ? null : FossilBundlePublisher.findUpstreamBuild(build, bundleFrom);
+        if (upstream != null) {
             try {
-                listener.getLogger().println("Removing repository from workspace...");
-                fossil_delete_repository(launcher, listener, workspace);
-                listener.getLogger().println("Cleaning workspace...");
-                workspace.deleteRecursive();
+                workspace.child(FossilBundlePublisher.BUNDLE).copyFrom(
+                        new FilePath(new File(upstream.getArtifactsDir(), FossilBundlePublisher.BUNDLE)));
+                buildTag = upstream.getAction(FossilRevisionState.class).getRevId();
+                listener.getLogger().println("info: using the bundle of " + upstream.getFullDisplayName() + " (checkin " + buildTag + ")");
             } catch (IOException e) {
-                e.printStackTrace(listener.fatalError("Failed to cleanBuild the workspace"));
-                return false;
+                listener.error("Failed to copy the bundle of " + upstream.getFullDisplayName() + ": " + e.getMessage()
+                        + "; pulling from the server instead.");
+                upstream = null;
+                try {
+                    workspace.child(FossilBundlePublisher.BUNDLE).delete();  // a partial copy.
+                } catch (IOException e2) {
+                    logger.log(Level.FINE, "Cannot delete the partial bundle", e2);
+                }
             }
-
-
-        } else {
-            listener.getLogger().println("info: Cleaning workspace...");
+        } else if (bundleFrom.length() > 0) {
+            listener.getLogger().println("info: no bundle from '" + bundleFrom + "'; pulling from the server.");
         }
-        return true;
-    }
-
-    /**
-     * Populate the workspace with content from a Fossil localRepository.
-     * 
-     * There is an option provided for a pull+update instead of a clone.
-     * 
-     * @param build 
-     * @param launcher used to execute the Fossil command.
-     * @param workspace target for the command
-     * @param listener
-     * @return
-     * @throws InterruptedException 
-     */
-    private boolean populate_workspace_from_pull(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener)
-            throws InterruptedException, IOException {
-
-        // TODO: Not enabling this in my primary workmachine.  Let's do this in a VM!
-
-        return true
-                && fossil_open(build, launcher, workspace, listener) // make sure it is open
-                && fossil_pull(build, launcher, workspace, listener)
-                && fossil_update(build, launcher, workspace, listener) // update files with pulled changes in repo.
-                && fossil_close(build, launcher, workspace, listener);
-    }
-
-    /**
-     * Populate the workspace with content from a Fossil localRepository.
-     * 
-     * When cloning, we remove the existing repo because the fossil clone will complain otherwise.
-     * 
-     * @param build 
-     * @param launcher used to execute the Fossil command.
-     * @param workspace target for the command
-     * @param listener
-     * @return
-     * @throws InterruptedException 
-     */
-    private boolean populate_workspace_from_clone(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener)
-            throws InterruptedException, IOException {
-        return true
-                && fossil_delete_repository(launcher, listener, workspace)
-                && fossil_clone(build, launcher, workspace, listener)
-                && fossil_settings("autosync", "off", build, launcher, workspace, listener)
-                && fossil_open(build, launcher, workspace, listener)
-                && fossil_close(build, launcher, workspace, listener);
-    }
 
-    /**
-     * Execute a "open" command using Fossil.
-     * 
-     * @param build
-     * @param launcher
-     * @param workspace
-     * @param listener
-     * @return true if successful
-     * @throws InterruptedException 
-     */
-    private boolean fossil_open(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException, IOException {
-        ArgumentListBuilder args = new ArgumentListBuilder();
-
-        FilePath repopath = new FilePath(new File(workspace.getRemote(), getLocalRepository()));
-
-        if (!repopath.exists()) {
-            listener.fatalError("fossil cannot open a missing repository (" + repopath.getRemote() + ")");
-            return false;
-        }
-
-
-
-        args.add(getDescriptor().getFossilExecutable(), "open");
-        args.add(getLocalRepository());
+        /*
+         * The whole sequence (probe, pull or clone, update, revision lookup and change log) runs on the
+         * machine that owns the workspace, so a remote slave costs a single round trip.
+         */
+        FossilCheckoutTask task = new FossilCheckoutTask(getDescriptor().getFossilExecutable(), repo,
+                getServerUrl(), getAuthenticatedServerUrl(), buildTag, cleanBuild,
+                build.getEnvironment(listener), listener);
 
-        try {
-            // remember not to log the username and password...
-            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
-                listener.fatalError("Failed to open repository '" + getLocalRepository());
-                return false;
-            }
-        } catch (IOException e) {
-            listener.fatalError("Failed to open repository '" + getLocalRepository());
-            return false;
+        if (upstream != null) {
+            task.importBundle(FossilBundlePublisher.BUNDLE);
         }
-        return true;
-    }
-
-    /**
-     * Delete the repository on the remote slave, assuming the same workspace path and repository name.
-     * 
-     * Note that Fossil keeps track of repositories on a machine (in a special file) which is how the "fossil all" commands work.
-     * Having this method allows us to remove the repository cleanly prior to cleaning the files themselves from the workspace.
-     *
-     * @param build
-     * @param launcher
-     * @param workspace
-     * @param listener
-     * @return
-     * @throws InterruptedException
-     * @throws IOException 
-     */
-    private boolean fossil_delete_repository(Launcher launcher, BuildListener listener, FilePath workspace)
-            throws IOException, InterruptedException {
-        FilePath repopath = new FilePath(workspace, getLocalRepository());
-
-        repopath.delete();
-        return true;
-    }
-
-    /**
-     * Execute a Fossil update, which updates the workspace with files from the local repository.
-     * 
-     * @param build
-     * @param launcher
-     * @param workspace
-     * @param listener
-     * @param flag
-     * @return
-     * @throws InterruptedException 
-     */
-    private boolean fossil_update(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException {
-        ArgumentListBuilder args = new ArgumentListBuilder();
-        String command = "update";
-
-        args.add(getDescriptor().getFossilExecutable(), command.toLowerCase());
-        args.add(getBuildTag());
-
-        try {
-            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
-                listener.fatalError("Failed to " + args.toStringWithQuote() + " workspace = '" + workspace + "'");
-                return false;
-            }
-        } catch (IOException e) {
-            listener.fatalError("Failed to " + args.toStringWithQuote() + " workspace = '" + workspace + "'");
-            return false;
+        if (getDescriptor().getSnapshotCacheSize() > 0) {
+            task.useSnapshotCache(getDescriptor().getSnapshotCacheSize() * 1024L * 1024L);
         }
-        //        listener.getLogger().println("info: successfully ran single command:" + command);
-        return true;
-    }
 
-    /**
-     * Execute a "pull" command using Fossil.
-     * 
-     * @param build
-     * @param launcher
-     * @param workspace
-     * @param listener
-     * @return true if successful
-     * @throws InterruptedException 
-     */
-    private boolean fossil_pull(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException, IOException {
-
-        FilePath repopath = new FilePath(new File(workspace.getRemote(), getLocalRepository()));
-
-        if (!repopath.exists()) {
-            listener.error("fossil cannot open a missing repository (" + repopath.getRemote() + ")");
-            return false;
+        if (preserveTimestamps) {
+            task.preserveTimestamps();
         }
 
-        ArgumentListBuilder args = new ArgumentListBuilder();
-
-        args.add(getDescriptor().getFossilExecutable(), "pull");
-        args.add(getAuthenticatedServerUrl());
-        args.add("--repository", getLocalRepository());
-        args.add("--once"); // dont remember the URL (fossil normally does.)
-
-        try {
-            // remember not to log the username and password...
-            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
-                listener.fatalError("Failed to pull from server '" + getServerUrl() + "' into repository '" + getLocalRepository() + "'");
-                return false;
-            }
-        } catch (IOException e) {
-            listener.fatalError("IOException: Failed to pull from server '" + getServerUrl() + "' into repository '" + getLocalRepository() + "'");
-            return false;
+        FossilPollCache.Entry polled = FossilPollCache.get(build.getProject());
+        if (polled != null) {
+            task.skipChangelogFor(polled.getOldRevId(), polled.getNewRevId());
         }
-        return true;
-    }
-
-    /**
-     * Execute a "clone" command (no arguments) using Fossil.
-     * After a clone, you have to open the localRepository to see populate the workspace.
-    
-     * @param build
-     * @param launcher
-     * @param workspace
-     * @param listener
-     * @return true if successful
-     * @throws InterruptedException 
-     */
-    private boolean fossil_clone(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException, IOException {
-        ArgumentListBuilder args = new ArgumentListBuilder();
 
-        FilePath repopath = new FilePath(new File(workspace.getRemote(), getLocalRepository()));
-
-        if (repopath.exists()) {
-            listener.fatalError("fossil cannot clone over an existing repository (" + repopath.getRemote() + ")");
-            return false;
+        OutputStream rawLog = null;
+        if (quiet) {
+            rawLog = new FileOutputStream(new File(build.getRootDir(), FossilCheckoutTask.RAW_LOG));
+            task.summarizeOutput(new RemoteOutputStream(rawLog));
         }
 
-        args.add(getDescriptor().getFossilExecutable(), "clone");
-        args.add(getAuthenticatedServerUrl());
-        args.add(getLocalRepository());
-
+        FossilCheckoutResult result;
         try {
-            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
-                listener.fatalError("Failed to clone from server '" + getServerUrl() + "' into repository '" + getLocalRepository() + "'");
-                return false;
+            result = workspace.act(task);
+        } finally {
+            if (rawLog != null) {
+                rawLog.close();
             }
-        } catch (IOException e) {
-            listener.fatalError("Failed to clone from server '" + getServerUrl() + "' into repository '" + getLocalRepository() + "'");
-            return false;
         }
-        return true;
-    }
-
-    /**
-     * Set a setting on a Fossil repository.
-     * 
-     * Used predominantly to set autosync off but is general purpose.
-     * 
-     * Uses the default repository.
-     * 
-     * @param setting one of the allowable settings for the fossil repository
-     * @param value typically "on" or "off" but also may be a list. Depends on the setting.
-     * @param build
-     * @param launcher
-     * @param workspace
-     * @param listener
-     * @return
-     * @throws InterruptedException 
-     */
-    private boolean fossil_settings(String setting, String value, AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener)
-            throws InterruptedException, IOException {
 
-        ArgumentListBuilder args = new ArgumentListBuilder();
-        String command = "settings";
-
-        args.add(getDescriptor().getFossilExecutable(), command.toLowerCase());
-        args.add(setting);
-        args.add(value);
-
-        try {
-
-            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
-                listener.error("Failed to " + args.toStringWithQuote() + " workspace = '" + workspace + "'");
-                return false;
+        if (result.isSuccess()) {
+            FossilRevisionState built = result.getNewRevisionState();
+            String prefetch = FossilPrefetch.claim(build, built == null ? "" : built.getRevId());
+            if (prefetch != null) {
+                listener.getLogger().println(prefetch);
+            }
+            if (built != null) {
+                // saved with the build: the polling baseline, even after a restart.
+                build.addAction(new FossilRevisionState(built.getRevId(), getBranch(), result.getNewRevisionTime()));
+            }
+            if (polled != null && polled.matches(result.getOldRevisionState(), result.getNewRevisionState())) {
+                // polling already walked the timeline between these revisions.
+                polled.writeChangelog(changelogFile);
+                addPollCause(build, polled.getCheckins());
+                FossilPollCache.remove(build.getProject());
+            } else if (result.hasChangelog()) {
+                result.writeChangelog(changelogFile);
             }
-        } catch (IOException e) {
-            listener.error("Failed to " + args.toStringWithQuote());
-            return false;
         }
-        listener.getLogger().println("successfully ran single command:" + command);
-        return true;
-    }
 
-    /**
-     * Execute a single command (no arguments) using Fossil.
-     * 
-     * Used predominantly to open and close the localRepository.
-     * 
-     * @param build
-     * @param launcher
-     * @param workspace
-     * @param listener
-     * @return
-     * @throws InterruptedException 
-     */
-    private boolean fossil_close(AbstractBuild<?, ?> build, Launcher launcher, FilePath workspace, BuildListener listener) throws InterruptedException, IOException {
-        FilePath repopath = new FilePath(new File(workspace.getRemote(), getLocalRepository()));
+        // TODO: Find a reasonable way to tag a build.
+        // This code pretends to go ahead and tag build.
+        // but what tag do we use? (or apparently, we can use multiple tags.)
+        // the reason question - is why bother - this would only tag the local repository.
 
-        if (!repopath.exists()) {
-            listener.error("fossil cannot open a missing repository (" + repopath.getRemote() + ")");
-            return false;
+        if (useTagging) {
+            build.addAction(new FossilTagAction(build));
+            listener.getLogger().println("info: tagged build.");
         }
 
-        ArgumentListBuilder args = new ArgumentListBuilder();
-        String command = "close";
-
-        args.add(getDescriptor().getFossilExecutable(), command.toLowerCase());
-        args.add(getLocalRepository()); // local localRepository name
-        args.add("--force");
-
-        try {
+        listener.getLogger().println("info: Ending checkout...");
 
-            if (launcher.launch().cmds(args).envs(build.getEnvironment(listener)).stdout(listener.getLogger()).pwd(workspace).join() != 0) {
-                listener.error("Failed to " + args.toStringWithQuote() + " workspace = '" + workspace + "'");
-                return false;
-            }
-        } catch (IOException e) {
-            listener.error("Failed to " + args.toStringWithQuote());
-            return false;
-        }
-        listener.getLogger().println("successfully ran single command:" + command);
-        return true;
+        return result.isSuccess();
     }
 
     /**
-     * This method determines what is the revision state of a local repository (NOT "THE" localReository but any local repo file.)
-     *  
-     * @param launcher
-     * @param listener
-     * @param root is the remote top level directory of the remote repository.
-     * @return a non-null FossilRevisionState object representing the state of the given repository in the given workspace.
-     * @throws InterruptedException 
+     * Let the build's causes say which checkins polling found.
      */
-    private FossilRevisionState getRevisionState(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath workspace, String repo)
-            throws InterruptedException {
-
-        logger.info("ENTER:getRevisionState()");
-
-        if ("".equals(repo)) {
-            logger.info("EXIT:getRevisionState() - empty repo");
-            throw new InterruptedException("Cannot find repo therefore cannot obtain revision state.");
-        }
-        FossilRevisionState rev = null;
-        try {
-            if (launcher == null) {
-                /* Running for a VM or whathaveyou: make a launcher on master
-                 * todo grab a launcher on 'any slave'
-                 */
-                launcher = new LocalLauncher(listener);
-            }
-            PrintStream output = listener.getLogger();
-            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
-
-            ArgumentListBuilder args;
-
-            args = new ArgumentListBuilder();
-
-            FilePath repopath = new FilePath(new File(getLocalRepository()));
-
-            if (!repopath.exists()) {
-                logger.warning("EXIT:getRevisionState() - no repo at location.");
-                return null;
-            }
-
-
-            args.add(getDescriptor().getFossilExecutable(), "open", repo, "--keep");   // fast way to open a repo.
-
-            ProcStarter starter = launcher.launch().cmds(args).stdout(stdout).stderr(stderr).pwd(workspace);
-
-            // The launcher should already have the right vars!
-            // starter = starter.envs(EnvVars.masterEnvVars);
-
-            final int ret = starter.join();
-            final String info_output = args.toStringWithQuote() + " returned " + ret + ". Command output: \"" + stdout.toString() + "\" stderr: \"" + stderr.toString() + "\"";
-            if (ret != 0) {
-                logger.severe(info_output);
-            } else {
-                logger.info("INFO OUTPUT:" + info_output);
-                Map<String, String> ht = fossil_info_parser(info_output);
-                String checkin = ht.get("checkout:");
-                if (checkin != null) {
-                    rev = new FossilRevisionState(checkin);
-                } else {
-                    logger.log(Level.WARNING, "Unable to determine hash for repository '{0}'",
-                            repo);
-                }
+    private void addPollCause(AbstractBuild<?, ?> build, List<FossilCheckin> checkins) {
+        CauseAction causes = build.getAction(CauseAction.class);
+        if (causes != null) {
+            try {
+                causes.getCauses().add(new FossilPollCause(checkins));
+            } catch (UnsupportedOperationException e) {
+                logger.log(Level.FINE, "Cannot add polling cause to build", e);
             }
-
-            output.printf("info result: %s\n", info_output);
-
-            fossil_close(build, launcher, workspace, listener);
-
-        } catch (IOException e) {
-            StringWriter w = new StringWriter();
-            e.printStackTrace(new PrintWriter(w));
-            logger.log(Level.WARNING, "Failed to poll repository: ", e);
         }
+    }
 
-        if (rev == null) {
-            logger.log(Level.WARNING, "Failed to get revision state for: {0}", repo);
-        }
+    private void logSettings(BuildListener listener) {
+        listener.getLogger().println("serverUrl     :" + getServerUrl());
+        listener.getLogger().println("repository    :" + getLocalRepository());
+        listener.getLogger().println("branch        :" + getBuildTag());
+        listener.getLogger().println("username      :" + getUsername());
+        listener.getLogger().println("password      :" + (getPassword().equals("") ? "*Not Empty*" : "*Empty*"));
+        listener.getLogger().println("type          :" + getType());
 
-        logger.info("EXIT:getRevisionState()");
-        return rev;
     }
 
     /**
@@ -685,15 +355,15 @@ public class FossilScm extends SCM {
     /**
      * Calculates an object that represents the state of the workspace of the given build.
      * 
-     * Since we are using the optimization that allows for the checkout to compute this,
-     * this method does not have to implement anything and should therefore return null.
+     * The checkout records the revision it checked out as an action of the build, so this only has to
+     * look it up; no workspace is needed, and the state is still there after a restart.
      * 
      * This method is called after source code is checked-out  {@link FossilScm#checkout(AbstractBuild, Launcher, FilePath, BuildListener, File)}
      * 
      * @param build
      * @param launcher
      * @param listener
-     * @return null
+     * @return the recorded revision, or null if the checkout could not determine it
      * @throws IOException 
      * @throws InterruptedException 
      */
@@ -703,34 +373,78 @@ public class FossilScm extends SCM {
             TaskListener listener)
            throws IOException, InterruptedException {
 
-        return null;
+        return build.getAction(FossilRevisionState.class);
     }
 
     /**
      * This method returns the current remote revision state.
      * 
-     * The technique being used is to parse the RSS feed that is provided by the
-     * fossil server.
+     * A branch job created by {@link FossilBranchDiscovery} uses the tip fetched by the latest discovery pass.
+     * Otherwise the JSON API is asked first; if the server does not offer it, the RSS feed that is
+     * provided by every fossil server is parsed instead.  Either way, only checkins on the
+     * configured branch are considered.
      * 
      * @return current remote revision state
      * @throws IOException
      * @throws InterruptedException 
      */
-    private SCMRevisionState getCurrentRevisionState() throws IOException, InterruptedException {
+    private FossilRevisionState getCurrentRevisionState() throws IOException, InterruptedException {
 
-        StringBuffer rss = new StringBuffer(100000);  // arbitrarily large initial buffer. Should a StringBuilder be used instead?
+        if (isBranchBuild()) {
+            FossilCheckin tip = FossilBranchDiscovery.getCachedTip(getServerUrl(), branch);
+            if (tip != null) {
+                return new FossilRevisionState(tip.getUuid());  // branch discovery just fetched it.
+            }
+        }
+
+        FossilJsonClient json = new FossilJsonClient(getAuthenticatedServerUrl(), getBranch());
+        if (json.isAvailable()) {
+            try {
+                FossilCheckin tip = json.getTip();
+                return new FossilRevisionState(tip == null ? "" : tip.getUuid());
+            } catch (FossilJsonClient.UnavailableException e) {
+                logger.log(Level.FINE, "JSON API unavailable, falling back to RSS: {0}", e.getMessage());
+            }
+        }
 
-        URL url = new URL(getAuthenticatedServerUrl() + "/timeline.rss?y=ci&n=0");
+        String query = "/timeline.rss?y=ci&n=0";
+        if (isBranchBuild()) {
+            query += "&tag=" + URLEncoder.encode(branch, "UTF-8");   // only checkins on our branch.
+        }
+        String rss = FossilHttp.get(getAuthenticatedServerUrl(), query);
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()));
-        String inputLine;
+        return FossilRSSParser.parse(rss);
+    }
 
-        while ((inputLine = in.readLine()) != null) {
-            rss.append(inputLine);
+    /**
+     * List the checkins between two revisions straight from the server, without a local clone.
+     * 
+     * @param oldRevId the baseline checkin
+     * @param newRevId the current checkin
+     * @return the checkins after oldRevId up to newRevId (newest first), or null if the server has
+     *         no JSON API or the range could not be determined.
+     */
+    public List<FossilCheckin> getRemoteCheckinsBetween(String oldRevId, String newRevId) {
+        FossilJsonClient json = new FossilJsonClient(getAuthenticatedServerUrl(), getBranch());
+        if (!json.isAvailable()) {
+            return null;
+        }
+        try {
+            return json.getCheckinsBetween(oldRevId, newRevId);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Unable to list remote checkins: {0}", e.getMessage());
+            return null;
         }
-        in.close();
+    }
 
-        return FossilRSSParser.parse(rss.toString());
+    /**
+     * Polling talks to the server (JSON or RSS), so no workspace is needed.
+     * 
+     * @return false
+     */
+    @Override
+    public boolean requiresWorkspaceForPolling() {
+        return false;
     }
 
     /**
@@ -754,19 +468,22 @@ public class FossilScm extends SCM {
             throws IOException,
             InterruptedException {
 
-        if (workspace == null) {
-            return PollingResult.NO_CHANGES;
-        }
-
-        if (launcher == null) {
-            return PollingResult.NO_CHANGES;
-        }
-
         PrintStream output = listener.getLogger();
+        if (baseline == null || baseline.getDisplayName() == null) {
+            output.println("info: no baseline revision recorded yet");
+            return PollingResult.BUILD_NOW;
+        }
         output.printf("info: Getting current remote revision...");
 
-        SCMRevisionState current = getCurrentRevisionState();
+        FossilRevisionState current = getCurrentRevisionState();
 
+        if (baseline instanceof FossilRevisionState) {
+            String builtBranch = ((FossilRevisionState) baseline).getBranch();
+            if (builtBranch != null && !builtBranch.equals(getBranch())) {
+                output.println("info: the job now follows branch '" + getBranch() + "' instead of '" + builtBranch + "'");
+                return new PollingResult(baseline, current, PollingResult.Change.SIGNIFICANT);
+            }
+        }
 
         if (baseline.getDisplayName().equals(current.getDisplayName())) {
             output.printf("info: baseline:" + baseline.getDisplayName() + " == " + current.getDisplayName());
@@ -774,8 +491,22 @@ public class FossilScm extends SCM {
         }
         output.printf("info: baseline:" + baseline.getDisplayName() + " != " + current.getDisplayName());
 
+        /*
+         * We already know both ends of the change, so list the checkins in between now (JSON API only).
+         * The build this poll triggers writes its change log from them instead of running the timeline again.
+         */
+        List<FossilCheckin> checkins = getRemoteCheckinsBetween(baseline.getDisplayName(), current.getRevId());
+        if (checkins != null) {
+            output.println("info: " + checkins.size() + " new checkin(s)");
+            FossilPollCache.put(project, baseline.getDisplayName(), current.getRevId(), checkins);
+            current.setCheckins(checkins);
+        }
+
+        if (getDescriptor().isPrefetch()) {
+            FossilPrefetch.start(project, this, current.getRevId());
+        }
 
-        return PollingResult.SIGNIFICANT;
+        return new PollingResult(baseline, current, PollingResult.Change.SIGNIFICANT);
     }
 
     /**
@@ -788,170 +519,18 @@ public class FossilScm extends SCM {
         return new FossilChangeLogParser();
     }
 
-    // "fossil info" or "fossil open --keep" output looks like:
-    /* 
-    project-name: Blabla
-    localRepository:   C:/src/blabla/blabla
-    local-root:   C:/src/myroot/
-    user-home:    C:/Users/username/AppData/Local
-    project-code: 640e13fdd114a5894d9fa42576432cf51379b6be
-    checkout:     886b406bcf4276879cc9d1c9869772991aeaf21e 2012-06-02 22:42:54 UTC
-    parent:       2dd1b06dcc27781581f2bd2cbe269458ccf0b4ee 2012-06-02 22:18:35 UTC
-    tags:         trunk
-    comment:      made a comment  here. (user: user2)
-    more stuff.
-     */
     /**
      * This method takes the information that comes out of the Fossil client program
      * and parses it into a Map of strings associated to strings.
      * 
      * @param info the string of information that comes from the Fossil program.
-     * @return 
+     * @return the fields, keyed by name without the colon ("checkout", "checkout-date", "tags", "comment" ...)
+     * @see FossilInfo
      */
-    // TODO: someday replace with a statemachine - would be more tolerant to changes.
-    public Map<String, String> fossil_info_parser(String info) {
-
-
-        // Gotta extract the "checkout" line as revision.
-        // need first to extract lines, then strings.  Remember - filenames *could* have spaces.
-        // (hopefully no newlines.)
-
-        Map<String, String> tab = new HashMap<String, String>();
-
-        String[] lines = info.split("\\n");
-        int linenum = 0;
-
-        if (lines.length < 9) {
-            return tab;
-        }
-
-        String[] field = lines[linenum].trim().split("\\s++");
-
-        if (field[0].equals("project-name:")) {
-            tab.put("project-name", field[1]);
-        }
-
-        field = lines[++linenum].trim().split("\\s++");
-        if (field[0].equals("repository:")) {
-            tab.put("repository", field[1]);
-        }
-
-        field = lines[++linenum].trim().split("\\s++");
-        if (field[0].equals("local-root:")) {
-            tab.put("local-root", field[1]);
-        }
-
-        field = lines[++linenum].trim().split("\\s++");
-        if (field[0].equals("user-home:")) {
-            tab.put("user-home", field[1]);
-        }
-
-        field = lines[++linenum].trim().split("\\s++");
-        if (field[0].equals("project-code:")) {
-            tab.put("project-code", field[1]);
-        }
-
-        field = lines[++linenum].trim().split("\\s++");
-        if (field[0].equals("checkout:")) {
-            tab.put("checkout", field[1]);
-            tab.put("checkout-date", lines[linenum].substring(55).trim());
-        }
-
-        field = lines[++linenum].trim().split("\\s++");
-        if (field[0].equals("parent:")) {
-            tab.put("parent", field[1]);
-            tab.put("parent-date", lines[linenum].substring(55).trim());
-        }
-
-        // TODO: I've only ever seen one line of tags. What happens for more than one line worth?
-        field = lines[++linenum].trim().split("\\s++");
-        if (field[0].equals("tags:")) {
-            tab.put("tags", lines[linenum].substring(14).trim());
-        }
-
-        // Gather up all comment lines. The comment line is the last line in the output.
-
-        if (lines[++linenum].startsWith("comment:")) {
-            String s = "";
-            while (linenum < lines.length) {
-                s = s + lines[linenum].substring(14).trim() + "\n";
-                linenum++;
-            }
-            tab.put("comment", s);
-        } else {
-            tab.put("comment", "no comment block found. Found:'" + lines[linenum] + "'");
-        }
-
-        return tab;
+    public static Map<String, String> fossil_info_parser(String info) {
+        return FossilInfo.parse(info).toMap();
     }
 
-    /**
-     * Produce the log of changes from oldRevision to newRevision and store it into the passed-in changeLog file.
-     * 
-     * Fossil has the "timeline" command which will give you a summary of changes going back in time  given a last revision but not between
-     * two revisions.  
-     * 
-     * Note that Fossil only displays the first 10 characters of the revision hash as part of the timeline.
-     * 
-     * Also, we will ignore non-file changes (Fossil also deltas wiki and tickets).
-     * 
-     * Warning: current implementation is probably on the order of twice as slow as it could be. This is due to double request for timeline.
-     * This was deemed acceptable since build time will generally far outweigh timeline request.
-     * 
-     * @param launcher
-     * @param workspace
-     * @param oldRevisionState
-     * @param newRevisionState
-     * @param changeLog
-     * @throws InterruptedException 
-     */
-    private void getLogBetweenRevisionStates(Launcher launcher, FilePath workspace, FossilRevisionState oldRevisionState, FossilRevisionState newRevisionState, File changeLog) throws InterruptedException {
-        try {
-            int ret;
-            final String many_revisions = "2000000";
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            ArgumentListBuilder args = new ArgumentListBuilder();
-
-            args.add(getDescriptor().getFossilExecutable(), "timeline", "before", newRevisionState.getRevId(), "-n", many_revisions, "-t", "ci");
-
-            if ((ret = launcher.launch().cmds(args).envs(EnvVars.masterEnvVars).stdout(baos).pwd(workspace).join()) != 0) {
-                logger.log(Level.WARNING, args.toStringWithQuote() + "returned {0}", ret);
-            } else {
-                // Problem: Need to scan through the changeLog and remove all entries "BEFORE" oldRevisionState.
-                // one way would be to search through the "baos" looking for the oldRevisionState revid
-                // and truncate from that point forward.  Now, we need to only search for it in the proper place  in the string
-                // in case that sequence appears somewhere else in a command or something.
-                //
-                // Another way is to repeat the timeline for the changeLog "BEFORE" the oldRevisionState and calculate
-                // the size of that changeLog.  Then, use the size to truncate that many bytes off of the newRevisionState timeline.
-                // The tradeoff is avoiding to search the bytearray at a cost of reproducing the changelog which is an expensive
-                // operation. In addition, we have to keep two changelogs in memory.
-                //
-                // On the other hand, this is easy to implement and has low overall impact so that's what I did.
-                //
-                // The impact is roughly double the time and double the memory consumed.
-
-                ByteArrayOutputStream baos_old = new ByteArrayOutputStream();
-
-                ArgumentListBuilder args_old = new ArgumentListBuilder();
-
-                args_old.add(getDescriptor().getFossilExecutable(), "timeline", "before", oldRevisionState.getRevId(), "-n", many_revisions, "-t", "ci");
-
-                if ((ret = launcher.launch().cmds(args_old).envs(EnvVars.masterEnvVars).stdout(baos_old).pwd(workspace).join()) != 0) {
-                    logger.log(Level.WARNING, args_old.toStringWithQuote() + "returned {0}", ret);
-                } else {
-                    FileOutputStream fos = new FileOutputStream(changeLog);
-                    fos.write(baos.toByteArray(), 0, baos.size() - baos_old.size());  // truncate to relevant part of timeline.
-                    fos.close();
-                }
-            }
-        } catch (IOException e) {
-            StringWriter w = new StringWriter();
-            e.printStackTrace(new PrintWriter(w));
-            logger.log(Level.WARNING, "Failed to poll repository: ", e);
-        }
-    }
     /**
      * 
      * @return a repository browser
@@ -964,14 +543,25 @@ public class FossilScm extends SCM {
     /**
      * Create a correct URL string with authentication built-in, using the server URL as a starting point.
      * 
+     * The username and password are percent-encoded, so that a <tt>@</tt>, <tt>:</tt> or <tt>/</tt> in them
+     * cannot change the meaning of the URL; fossil and {@link FossilHttp} decode them.
+     * 
      * @return a Fossil localRepository URL string with embedded username and password
      */
     public String getAuthenticatedServerUrl() {
-        String serverUrl = (https ? "https" : "http") + "://" + username + ":" + password + "@" + server + ":" + port + "/" + serverpath;
+        String serverUrl = (https ? "https" : "http") + "://" + encode(username) + ":" + encode(password) + "@" + server + ":" + port + "/" + serverpath;
 
         return serverUrl;
     }
 
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(Util.fixNull(s), "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            return Util.fixNull(s);
+        }
+    }
+
     /**
      * @return the url the refers to the server (using Fossil's standard URL notation.)
      */
@@ -1019,10 +609,45 @@ public class FossilScm extends SCM {
     }
 
     /**
-     * @return which named checkin to update.
+     * @return which named checkin to update: the tip of the configured branch, or "latest".
      */
     public String getBuildTag() {
-        return "latest";
+        return isBranchBuild() ? branch : "latest";
+    }
+
+    /**
+     * @return the branch this job polls and builds (empty if it follows whatever is latest)
+     */
+    public String getBranch() {
+        return branch;
+    }
+
+    /**
+     * @return true if the console only gets a summary of the fossil output
+     */
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    /**
+     * @return the upstream job whose bundle is imported instead of pulling (empty for none)
+     */
+    public String getBundleFrom() {
+        return bundleFrom;
+    }
+
+    /**
+     * @return true if files whose content did not change are never rewritten
+     */
+    public boolean isPreserveTimestamps() {
+        return preserveTimestamps;
+    }
+
+    /**
+     * @return true if this job is restricted to a single branch.
+     */
+    public boolean isBranchBuild() {
+        return branch != null && branch.length() > 0;
     }
 
     /**
@@ -1060,6 +685,8 @@ public class FossilScm extends SCM {
          * the configuration options for a job (@see https://wiki.jenkins-ci.org/display/JENKINS/SCM+plugin+architecture )
          */
         private String fossilExecutable = "fossil";
+        private boolean prefetch = false;  // pull into the last build's workspace as soon as polling sees a change.
+        private int snapshotCacheSize = 0;  // MB per node for checked out trees (0 for no cache).
         private transient String version = "1";
 
         /**
@@ -1089,6 +716,40 @@ public class FossilScm extends SCM {
             }
         }
 
+        /**
+         * @return true if polling starts a pull on the node that last built the job when it finds a change
+         * @see FossilPrefetch
+         */
+        public boolean isPrefetch() {
+            return prefetch;
+        }
+
+        /**
+         * @return how many MB of checked out trees each node may keep (0 for no cache)
+         * @see FossilSnapshotCache
+         */
+        public int getSnapshotCacheSize() {
+            return snapshotCacheSize;
+        }
+
+        /**
+         * @return how often prefetching paid off since Jenkins started
+         */
+        public String getPrefetchStatistics() {
+            return FossilPrefetch.getStatistics();
+        }
+
+        /**
+         * @return the state and counters of the circuit breaker of every server polled since Jenkins started
+         */
+        public List<String> getCircuitBreakers() {
+            List<String> states = new ArrayList<String>();
+            for (FossilHttp.CircuitBreaker b : FossilHttp.getCircuitBreakers().values()) {
+                states.add(b.toString());
+            }
+            return states;
+        }
+
         /**
          * Create a new instance of this plugin from a form request.
          * The form is created automatically from the Jelly files.
@@ -1116,6 +777,12 @@ public class FossilScm extends SCM {
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
             fossilExecutable = Util.fixEmpty(req.getParameter("fossil.fossilExecutable").trim());
+            prefetch = req.getParameter("fossil.prefetch") != null;
+            try {
+                snapshotCacheSize = Math.max(0, Integer.parseInt(Util.fixNull(req.getParameter("fossil.snapshotCacheSize")).trim()));
+            } catch (NumberFormatException e) {
+                snapshotCacheSize = 0;
+            }
 
             save();
             return true;
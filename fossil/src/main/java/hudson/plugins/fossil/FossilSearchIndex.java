@@ -0,0 +1,351 @@
+package hudson.plugins.fossil;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.scm.ChangeLogSet;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-job full-text index over the commit messages, authors and affected paths of every build's changes.
+ *
+ * The index lives in <tt>fossil-search.log</tt> in the job directory.  It is append-only: one line per
+ * build, <tt>NUMBER TAB term:count term:count ...</tt>.  It is read into an inverted index (term to
+ * build numbers and counts, kept in primitive arrays) once, and appended to as builds parse their change
+ * logs, so a query never opens a change log.  Builds may be recorded in any order (a build that finishes
+ * after a newer one, for instance); each is recorded once.
+ *
+ * Terms are lower-cased words of the messages, <tt>author:NAME</tt>, and <tt>path:DIR</tt> for every
+ * directory (and the file itself) of each affected path.  A query such as <tt>path:src/net timeout</tt>
+ * returns the builds that match every term, ranked by tf-idf.
+ *
+ * @author Ron Perrella
+ */
+public class FossilSearchIndex {
+
+    private static final String FILE_NAME = "fossil-search.log";
+    private static final FossilIndexCache<FossilSearchIndex> indexes = new FossilIndexCache<FossilSearchIndex>() {
+        @Override
+        protected FossilSearchIndex load(AbstractProject<?, ?> project) {
+            FossilSearchIndex index = new FossilSearchIndex(new File(project.getRootDir(), FILE_NAME));
+            index.load();
+            index.catchUp(project);
+            return index;
+        }
+    };
+
+    private final File file;
+    private final Map<String, Postings> terms = new HashMap<String, Postings>();
+    private final Set<Integer> indexed = new HashSet<Integer>();
+
+    FossilSearchIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param project a job
+     * @return the job's index, loaded (and brought up to date) on first use.
+     */
+    public static FossilSearchIndex get(AbstractProject<?, ?> project) {
+        return indexes.get(project);
+    }
+
+    private synchronized void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String s;
+                while ((s = in.readLine()) != null) {
+                    int tab = s.indexOf('\t');
+                    if (tab <= 0) {
+                        continue;  // a line cut short by a crash.
+                    }
+                    int number = Integer.parseInt(s.substring(0, tab));
+                    if (indexed.contains(number)) {
+                        continue;  // recorded twice; the first line counts.
+                    }
+                    Map<String, Integer> counts = new HashMap<String, Integer>();
+                    for (String tc : s.substring(tab + 1).split(" ")) {
+                        int colon = tc.lastIndexOf(':');
+                        if (colon > 0) {
+                            counts.put(unescape(tc.substring(0, colon)), Integer.parseInt(tc.substring(colon + 1)));
+                        }
+                    }
+                    add(number, counts);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read Fossil search index " + file, e);
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Corrupt Fossil search index " + file, e);
+        }
+    }
+
+    /**
+     * Index the finished builds that are not in the index yet (parsing their change logs once).
+     */
+    private synchronized void catchUp(AbstractProject<?, ?> project) {
+        List<AbstractBuild<?, ?>> missing = new ArrayList<AbstractBuild<?, ?>>();
+        for (AbstractBuild<?, ?> b : project.getBuilds()) {   // newest first
+            if (!b.isBuilding() && !indexed.contains(b.getNumber())) {
+                missing.add(b);
+            }
+        }
+        Collections.reverse(missing);
+        for (AbstractBuild<?, ?> b : missing) {
+            record(b.getNumber(), b.getChangeSet());
+        }
+    }
+
+    /**
+     * Add a build's changes to the index and append them to the index file, unless the build is indexed
+     * already.
+     *
+     * @param number the build number
+     * @param changes the build's change log
+     */
+    public synchronized void record(int number, ChangeLogSet<?> changes) {
+        if (indexed.contains(number)) {
+            return;
+        }
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        Iterable<FossilChangeLogEntry> entries = changes instanceof FossilChangeLogSet
+                ? (FossilChangeLogSet) changes : Collections.<FossilChangeLogEntry>emptyList();
+        for (FossilChangeLogEntry e : entries) {
+            for (String w : words(e.getMsg())) {
+                count(counts, w);
+            }
+            if (e.getAuthorName().length() > 0) {
+                count(counts, "author:" + e.getAuthorName().toLowerCase());
+            }
+            for (FossilAffectedFile f : e.getAffectedFiles()) {
+                String path = f.getPath().toLowerCase();
+                for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1)) {
+                    count(counts, "path:" + path.substring(0, slash));
+                }
+                count(counts, "path:" + path);
+            }
+        }
+        add(number, counts);
+        append(number, counts);
+    }
+
+    private static void count(Map<String, Integer> counts, String term) {
+        Integer c = counts.get(term);
+        counts.put(term, c == null ? 1 : c + 1);
+    }
+
+    private void add(int number, Map<String, Integer> counts) {
+        for (Map.Entry<String, Integer> tc : counts.entrySet()) {
+            Postings p = terms.get(tc.getKey());
+            if (p == null) {
+                p = new Postings();
+                terms.put(tc.getKey(), p);
+            }
+            p.add(number, tc.getValue());
+        }
+        indexed.add(number);
+    }
+
+    private void append(int number, Map<String, Integer> counts) {
+        if (file == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(number).append('\t');
+        for (Map.Entry<String, Integer> tc : counts.entrySet()) {
+            sb.append(escape(tc.getKey())).append(':').append(tc.getValue()).append(' ');
+        }
+        sb.append('\n');
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                out.write(sb.toString());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to update Fossil search index " + file, e);
+        }
+    }
+
+    /**
+     * Find the builds whose changes match every term of the query, best match first.
+     *
+     * @param query words, <tt>author:NAME</tt> and <tt>path:DIR</tt> terms separated by blanks
+     * @param max the maximum number of results
+     * @return the matching builds
+     */
+    public synchronized List<Hit> search(String query, int max) {
+        List<String> required = new ArrayList<String>();
+        for (String term : query.toLowerCase().trim().split("\\s+")) {
+            if (term.length() == 0) {
+                continue;
+            }
+            if (term.startsWith("path:") && term.endsWith("/")) {
+                term = term.substring(0, term.length() - 1);
+            }
+            if (term.startsWith("path:") || term.startsWith("author:")) {
+                required.add(term);
+            } else {
+                required.addAll(words(term));  // "net.timeout" requires both words, as the messages were indexed.
+            }
+        }
+        List<Postings> lists = new ArrayList<Postings>();
+        for (String term : required) {
+            Postings p = terms.get(term);
+            if (p == null) {
+                return Collections.emptyList();
+            }
+            lists.add(p);
+        }
+        if (lists.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // intersect starting from the rarest term.
+        Collections.sort(lists);
+        Postings first = lists.get(0);
+        List<Hit> hits = new ArrayList<Hit>();
+        for (int i = 0; i < first.size; i++) {
+            int number = first.builds[i];
+            double score = 0;
+            boolean all = true;
+            for (Postings p : lists) {
+                int count = p.count(number);
+                if (count == 0) {
+                    all = false;
+                    break;
+                }
+                score += (1 + Math.log(count)) * Math.log(1.0 + (double) indexed.size() / p.size);
+            }
+            if (all) {
+                hits.add(new Hit(number, score));
+            }
+        }
+        Collections.sort(hits);
+        return hits.size() > max ? new ArrayList<Hit>(hits.subList(0, max)) : hits;
+    }
+
+    /**
+     * Split a message into lower-case words of at least two letters or digits.
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start >= 2) {
+                    words.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static String escape(String term) {
+        return term.replace("%", "%25").replace(" ", "%20").replace("\t", "%09").replace("\n", "%0A");
+    }
+
+    private static String unescape(String term) {
+        return term.indexOf('%') < 0 ? term
+                : term.replace("%0A", "\n").replace("%09", "\t").replace("%20", " ").replace("%25", "%");
+    }
+
+    /**
+     * The builds containing one term, in ascending build order, with the number of occurrences in each.
+     */
+    private static final class Postings implements Comparable<Postings> {
+
+        private int[] builds = new int[4];
+        private int[] counts = new int[4];
+        private int size = 0;
+
+        void add(int number, int count) {
+            int i = size > 0 && builds[size - 1] < number ? -size - 1 : Arrays.binarySearch(builds, 0, size, number);
+            if (i >= 0) {
+                counts[i] += count;
+                return;
+            }
+            i = -i - 1;  // usually the end: builds are mostly recorded in order.
+            if (size == builds.length) {
+                builds = Arrays.copyOf(builds, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(builds, i, builds, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            builds[i] = number;
+            counts[i] = count;
+            size++;
+        }
+
+        int count(int number) {
+            int i = Arrays.binarySearch(builds, 0, size, number);
+            return i < 0 ? 0 : counts[i];
+        }
+
+        public int compareTo(Postings o) {
+            return size - o.size;
+        }
+    }
+
+    /**
+     * A build that matched a query.
+     */
+    public static final class Hit implements Comparable<Hit> {
+
+        private final int build;
+        private final double score;
+
+        Hit(int build, double score) {
+            this.build = build;
+            this.score = score;
+        }
+
+        /**
+         * @return the build number
+         */
+        public int getBuild() {
+            return build;
+        }
+
+        /**
+         * @return the relevance of the build (higher is better)
+         */
+        public double getScore() {
+            return score;
+        }
+
+        public int compareTo(Hit o) {
+            int c = Double.compare(o.score, score);
+            return c != 0 ? c : o.build - build;  // newest first among equals.
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilSearchIndex.class.getName());
+}
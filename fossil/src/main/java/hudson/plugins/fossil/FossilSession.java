@@ -0,0 +1,211 @@
+package hudson.plugins.fossil;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A login to a private repository, shared by every poll made with the same credentials.
+ *
+ * Putting <tt>user:password</tt> in every request made the server check the password (a deliberately slow
+ * hash) on every poll.  Instead the first request logs in through <tt>/login</tt>, and the login cookie
+ * is sent with the following requests until it expires or the server stops accepting it, so a poll only
+ * costs the server a cookie lookup.
+ *
+ * If the server refuses the login, requests fall back to a Basic <tt>Authorization</tt> header and the
+ * login is not tried again for {@link #RETRY_LOGIN_AFTER} ms.  While one poll logs in, the others do not
+ * wait for it: they use the old cookie if it has not expired yet, or Basic authentication.
+ *
+ * Sessions are kept by repository and user.  Only a digest of the password is compared, to start a new
+ * session when the password changes.
+ *
+ * @author Ron Perrella
+ */
+final class FossilSession {
+
+    /**
+     * How long to wait before logging in again after a refused login.
+     */
+    static final long RETRY_LOGIN_AFTER = 10L * 60L * 1000L;
+
+    /**
+     * How long to use a cookie that does not say when it expires.
+     */
+    static final long DEFAULT_LIFETIME = 60L * 60L * 1000L;
+
+    /**
+     * Renew the login this long before the cookie expires.
+     */
+    private static final long MARGIN = 60L * 1000L;
+
+    private static final Map<String, FossilSession> sessions = new ConcurrentHashMap<String, FossilSession>();
+
+    private final String repository;
+    private final String user;
+    private final String password;
+    private final String passwordDigest;
+    private String cookie;           // name=value, or null when logged out
+    private long expires;
+    private long refusedUntil;
+    private boolean loggingIn;
+
+    FossilSession(String repository, String user, String password) {
+        this.repository = repository;
+        this.user = user;
+        this.password = password;
+        this.passwordDigest = digest(password);
+    }
+
+    /**
+     * @param repository the repository URL, without credentials
+     * @param user the user name
+     * @param password the password
+     * @return the session for the repository and credentials
+     */
+    static FossilSession get(String repository, String user, String password) {
+        String key = repository + '\n' + user;
+        synchronized (sessions) {
+            FossilSession s = sessions.get(key);
+            if (s == null || !s.passwordDigest.equals(digest(password))) {
+                s = new FossilSession(repository, user, password);  // the password changed: log in afresh.
+                sessions.put(key, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * @return the login cookie (<tt>name=value</tt>), logging in if there is none or it is about to
+     *         expire; the old cookie while another thread logs in; null if there is none or the server
+     *         refuses the login.
+     * @throws IOException if the server could not be reached
+     */
+    String getCookie() throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (cookie != null && now < expires - MARGIN) {
+                return cookie;
+            }
+            if (cookie != null && now >= expires) {
+                cookie = null;
+            }
+            if (loggingIn || now < refusedUntil) {
+                return cookie;
+            }
+            loggingIn = true;
+        }
+        // log in without holding the monitor, so that other polls are not held up by a slow server.
+        boolean accepted = false;
+        try {
+            accepted = accept(FossilHttp.login(repository, user, password), now);
+        } finally {
+            synchronized (this) {
+                loggingIn = false;
+                if (!accepted) {
+                    cookie = null;
+                }
+            }
+        }
+        if (!accepted) {
+            logger.log(Level.WARNING, "Login to {0} as {1} refused; sending credentials with every request", new Object[]{repository, user});
+            synchronized (this) {
+                refusedUntil = now + RETRY_LOGIN_AFTER;
+            }
+            return null;
+        }
+        logger.log(Level.FINE, "Logged in to {0} as {1}", new Object[]{repository, user});
+        synchronized (this) {
+            return cookie;
+        }
+    }
+
+    /**
+     * Take the login cookie from the <tt>Set-Cookie</tt> headers of a login response.
+     *
+     * @param headers the header values
+     * @param now the current time
+     * @return true if there was a login cookie
+     */
+    synchronized boolean accept(List<String> headers, long now) {
+        for (String header : headers) {
+            String[] parts = header.split(";");
+            String nameValue = parts[0].trim();
+            int eq = nameValue.indexOf('=');
+            if (!nameValue.startsWith("fossil-") || eq < 0 || eq == nameValue.length() - 1) {
+                continue;  // not the login cookie (e.g. the display preferences), or a logout.
+            }
+            long until = now + DEFAULT_LIFETIME;
+            for (int i = 1; i < parts.length; i++) {
+                String attr = parts[i].trim();
+                String lower = attr.toLowerCase(Locale.ENGLISH);
+                try {
+                    if (lower.startsWith("max-age=")) {
+                        until = now + Long.parseLong(attr.substring(8).trim()) * 1000L;
+                        break;  // Max-Age wins over Expires.
+                    } else if (lower.startsWith("expires=")) {
+                        until = parseDate(attr.substring(8).trim());
+                    }
+                } catch (NumberFormatException e) {
+                    // keep the default lifetime.
+                } catch (ParseException e) {
+                    // keep the default lifetime.
+                }
+            }
+            if (until <= now) {
+                continue;
+            }
+            cookie = nameValue;
+            expires = until;
+            return true;
+        }
+        return false;
+    }
+
+    private static long parseDate(String s) throws ParseException {
+        try {
+            return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(s).getTime();
+        } catch (ParseException e) {
+            return new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss zzz", Locale.US).parse(s).getTime();
+        }
+    }
+
+    /**
+     * Forget the cookie (the server no longer accepts it); the next request logs in again.
+     */
+    synchronized void invalidate() {
+        cookie = null;
+    }
+
+    /**
+     * @return <tt>user:password</tt>, for a Basic <tt>Authorization</tt> header
+     */
+    String getCredentials() {
+        return user + ":" + password;
+    }
+
+    private static String digest(String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest(password.getBytes("UTF-8"))) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // every JRE has SHA-256.
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilSession.class.getName());
+}
@@ -0,0 +1,267 @@
+package hudson.plugins.fossil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A node-local cache of checked out trees, one per checkin hash.
+ *
+ * A fresh workspace (a new node, <tt>workspace@2</tt>, a clean build) used to be filled by <tt>fossil
+ * open</tt>, which expands every file from the repository one by one.  With the cache, the first checkout
+ * of a checkin on a node also copies the managed files into <tt>&lt;root&gt;/&lt;hash&gt;/</tt>, and later
+ * fresh checkouts of the same checkin copy them back and only register the checkout with <tt>fossil open
+ * --keep</tt>.
+ *
+ * Next to each tree, <tt>&lt;hash&gt;.files</tt> lists its files and total size; it is written last, so a
+ * tree without one is incomplete and ignored.  Its modification time records the last use, and the least
+ * recently used trees are deleted once the cache grows past its budget.
+ *
+ * Files are copied, never linked, so a build that edits its sources in place cannot damage the cache.
+ *
+ * @author Ron Perrella
+ */
+final class FossilSnapshotCache {
+
+    private static final String MANIFEST = ".files";
+    private static final int BUFFER = 64 * 1024;
+
+    private final File root;
+    private final long budget;
+
+    /**
+     * @param root the cache directory
+     * @param budget how many bytes the cached trees may take
+     */
+    FossilSnapshotCache(File root, long budget) {
+        this.root = root;
+        this.budget = budget;
+    }
+
+    /**
+     * @param workspace a workspace on this node
+     * @return where the node keeps the cache: next to its workspaces, unless
+     *         <tt>-Dhudson.plugins.fossil.FossilSnapshotCache.dir</tt> says otherwise
+     */
+    static File defaultRoot(File workspace) {
+        String dir = System.getProperty(FossilSnapshotCache.class.getName() + ".dir");
+        if (dir != null && dir.length() > 0) {
+            return new File(dir);
+        }
+        File parent = workspace.getAbsoluteFile().getParentFile();
+        return new File(parent == null ? workspace : parent, ".fossil-snapshots");
+    }
+
+    /**
+     * Copy the tree of a checkin into a workspace.
+     *
+     * @param hash the full checkin hash
+     * @param workspace the workspace
+     * @return the number of files copied, or -1 if the checkin is not cached
+     * @throws IOException if a file could not be copied
+     */
+    int restore(String hash, File workspace) throws IOException {
+        List<String> files;
+        File tree = new File(root, hash);
+        synchronized (FossilCheckoutTask.lockFor(root)) {
+            File manifest = new File(root, hash + MANIFEST);
+            if (!manifest.isFile() || !tree.isDirectory()) {
+                return -1;
+            }
+            files = readManifest(manifest);
+            if (!manifest.setLastModified(System.currentTimeMillis())) {
+                logger.log(Level.FINE, "Cannot touch {0}", manifest);
+            }
+            // copied under the lock, so that eviction cannot delete the tree meanwhile.
+            for (String path : files) {
+                copy(new File(tree, path), new File(workspace, path));
+            }
+        }
+        return files.size();
+    }
+
+    /**
+     * Add the tree of a checkin, unless it is cached already, then evict the least recently used trees
+     * if the cache is over budget.
+     *
+     * @param hash the full checkin hash
+     * @param workspace a workspace just opened at the checkin
+     * @param files the files fossil manages, relative to the workspace
+     * @throws IOException if the tree could not be stored
+     */
+    void store(String hash, File workspace, List<String> files) throws IOException {
+        synchronized (FossilCheckoutTask.lockFor(root)) {
+            File manifest = new File(root, hash + MANIFEST);
+            if (manifest.isFile()) {
+                return;
+            }
+            if (!root.isDirectory() && !root.mkdirs()) {
+                throw new IOException("Cannot create " + root);
+            }
+            File tree = new File(root, hash);
+            delete(tree);  // left over from an interrupted store.
+            long size = 0;
+            for (String path : files) {
+                size += copy(new File(workspace, path), new File(tree, path));
+            }
+            if (size > budget) {
+                delete(tree);
+                logger.log(Level.FINE, "Checkin {0} ({1} bytes) does not fit in the snapshot cache", new Object[]{hash, size});
+                return;
+            }
+            writeManifest(manifest, size, files);
+            evict(hash);
+        }
+    }
+
+    /**
+     * Delete the least recently used trees until the cache fits its budget, never the one just stored.
+     */
+    private void evict(String keep) throws IOException {
+        File[] manifests = root.listFiles();
+        if (manifests == null) {
+            return;
+        }
+        List<File> used = new ArrayList<File>();
+        long total = 0;
+        for (File f : manifests) {
+            if (f.getName().endsWith(MANIFEST)) {
+                used.add(f);
+                total += sizeOf(f);
+            }
+        }
+        File[] oldestFirst = used.toArray(new File[used.size()]);
+        Arrays.sort(oldestFirst, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = a.lastModified(), y = b.lastModified();
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+        });
+        for (File manifest : oldestFirst) {
+            if (total <= budget) {
+                break;
+            }
+            String hash = manifest.getName().substring(0, manifest.getName().length() - MANIFEST.length());
+            if (hash.equals(keep)) {
+                continue;
+            }
+            total -= sizeOf(manifest);
+            if (!manifest.delete()) {
+                logger.log(Level.WARNING, "Cannot delete {0}", manifest);
+                continue;
+            }
+            delete(new File(root, hash));
+            logger.log(Level.FINE, "Evicted checkin {0} from the snapshot cache", hash);
+        }
+    }
+
+    private static long sizeOf(File manifest) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            String first = in.readLine();
+            return first == null ? 0 : Long.parseLong(first.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<String> readManifest(File manifest) throws IOException {
+        List<String> files = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            in.readLine();  // the size.
+            String s;
+            while ((s = in.readLine()) != null) {
+                if (s.length() > 0) {
+                    files.add(s);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return files;
+    }
+
+    private static void writeManifest(File manifest, long size, List<String> files) throws IOException {
+        File tmp = new File(manifest.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            out.write(size + "\n");
+            for (String path : files) {
+                out.write(path);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(manifest)) {
+            throw new IOException("Cannot rename " + tmp + " to " + manifest);
+        }
+    }
+
+    /**
+     * Copy a file, keeping its modification time and executable bit.
+     *
+     * @return the size of the file
+     */
+    private static long copy(File from, File to) throws IOException {
+        File dir = to.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        InputStream in = new FileInputStream(from);
+        long size = 0;
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buf = new byte[BUFFER];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                    size += n;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (from.canExecute() && !to.setExecutable(true)) {
+            logger.log(Level.FINE, "Cannot make {0} executable", to);
+        }
+        if (!to.setLastModified(from.lastModified())) {
+            logger.log(Level.FINE, "Cannot set the modification time of {0}", to);
+        }
+        return size;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (f.exists() && !f.delete()) {
+            logger.log(Level.WARNING, "Cannot delete {0}", f);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(FossilSnapshotCache.class.getName());
+}